@@ -0,0 +1,123 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.function.IntUnaryOperator;
+
+
+
+//the code being benchmarked, wrapped up for the benchmarks in package bench
+//JMH won't run benchmarks in the default package, and classes in a package can't refer to ones in the default package,
+//so the benchmarks look these methods up by reflection once, during setup, and call the standard interfaces they return
+public class Targets{
+	public static final float sampleRate=44100;
+	
+	//the sample file is looked for in the current directory and its parent, unless the bench.samples property names it
+	private static SampleBank bank() throws IOException{
+		String name=System.getProperty("bench.samples");
+		File file=new File(name!=null? name:"orgsamp.dat");
+		if(name==null && !file.exists()) file=new File("../orgsamp.dat");
+		return SampleBank.get(file);
+	}
+	
+	//renders the given number of sample frames of org, a chunk at a time, and returns a checksum
+	public static IntUnaryOperator organyaRenderer(byte[] org,boolean fixedPoint,final int chunkLen) throws IOException{
+		final Organya sound=new Organya(new ByteArrayInputStream(org),bank(),sampleRate,null);
+		sound.setFixedPoint(fixedPoint);
+		final int[] block=new int[2*chunkLen];
+		return new IntUnaryOperator(){
+			public int applyAsInt(int frames){
+				int sum=0;
+				while(frames>0){
+					int len=Math.min(frames,chunkLen);
+					sound.render(block,0,len);
+					sum+=block[0]+block[2*len-1];
+					frames-=len;
+				}
+				return sum;
+			}
+		};
+	}
+	
+	//parses org, returning the new Organya
+	public static Callable<Object> organyaParser(final byte[] org) throws IOException{
+		final SampleBank bank=bank();
+		return new Callable<Object>(){
+			public Object call() throws IOException{
+				return new Organya(new ByteArrayInputStream(org),bank,sampleRate,null);
+			}
+		};
+	}
+	
+	//writes a 16 bit stereo wav file of the given number of sample frames of noise
+	public static void writeWav(File file,int frames) throws IOException{
+		WavWriter out=new WavWriter(new BufferedOutputStream(new FileOutputStream(file),1<<16),sampleRate,frames);
+		try{
+			int[] block=new int[2*4096];
+			java.util.Random random=new java.util.Random(frames);
+			while(frames>0){
+				int len=Math.min(frames,4096);
+				for(int i=0;i<2*len;i++) block[i]=random.nextInt(65536)-32768;
+				out.write(block,0,len);
+				frames-=len;
+			}
+		}finally{out.close();}
+	}
+	
+	//loads file as a WavSound, returning it
+	public static Callable<Object> wavLoader(final File file,final boolean stream){
+		return new Callable<Object>(){
+			public Object call() throws IOException{
+				return new WavSound(file,false,stream,null);
+			}
+		};
+	}
+	
+	//plays the given number of sample frames of org through Sound.play, to a NullSink which takes them as fast as they are written,
+	//so that this is the playback thread's whole loop: rendering, the volume ramp, the monitor, sync events and the sink
+	//a buffer sync event stops playback once the sample frames have been rendered, after which the thread finishes the chunk it is on,
+	//and each call waits for the playback thread to close the sink, so that the next one starts it again
+	//the volume is set to keep ramping, so that the ramp is included, and monitor may be null
+	public static IntUnaryOperator playbackLoop(byte[] org,final int bufferLen,Monitor monitor) throws IOException{
+		final Organya sound=new Organya(new ByteArrayInputStream(org),bank(),sampleRate,monitor);
+		sound.setSyncExecutor(null);
+		return new IntUnaryOperator(){
+			private boolean loud;
+			
+			public int applyAsInt(int frames){
+				final CountDownLatch done=new CountDownLatch(1);
+				loud=!loud;
+				sound.setVolume(loud? 1:.5,1,false);
+				sound.addSync(new SoundSync(){
+					public void sync(){
+						sound.stop();
+						done.countDown();
+					}
+				},frames,false,false);
+				long before=sound.getMetrics().getFrames();
+				try{
+					sound.play(new NullSink(false),bufferLen);
+					done.await();
+				}catch(Exception e){
+					throw new RuntimeException(e);
+				}finally{
+					sound.stopAndWait();
+				}
+				return (int)(sound.getMetrics().getFrames()-before);
+			}
+		};
+	}
+	
+	//a monitor which finds the peak of each chunk, as a level meter would
+	public static Monitor peakMonitor(){
+		return new BlockMonitor(){
+			public int peak;
+			
+			@Override
+			public void monitor(SampleBlock b){
+				if(b==null) return;
+				int p=0;
+				for(int i=0;i<b.getFrames();i++) p=Math.max(p,Math.max(Math.abs(b.getLeft(i)),Math.abs(b.getRight(i))));
+				peak=p;
+			}
+		};
+	}
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+
+
+//runs the benchmarks like JMH's own main class, taking the same command line options,
+//but always with the gc profiler, so that allocation rates are reported alongside the timings
+public class BenchmarkMain{
+	public static void main(String[] args) throws Exception{
+		CommandLineOptions cmd=new CommandLineOptions(args);
+		Runner runner=new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+		if(cmd.shouldHelp()) cmd.showHelp();
+		else if(cmd.shouldList()) runner.list();
+		else runner.run();
+	}
+}
\ No newline at end of file
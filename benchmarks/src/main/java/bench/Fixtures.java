@@ -0,0 +1,28 @@
+package bench;
+
+import java.io.*;
+
+
+
+//access to the bundled fixtures, and to the code being benchmarked through the Targets class in the default package
+final class Fixtures{
+	private Fixtures(){}
+	
+	//the bundled .org files, from src/main/resources/fixtures
+	static byte[] org(String name) throws IOException{
+		InputStream in=Fixtures.class.getResourceAsStream("/fixtures/"+name+".org");
+		if(in==null) throw new FileNotFoundException("No fixture named "+name);
+		try{return in.readAllBytes();}
+		finally{in.close();}
+	}
+	
+	//calls the method of Targets with this name and these arguments, and returns what it returns
+	//the argument types are the declared ones, so this just finds the one public method with that name
+	@SuppressWarnings("unchecked")
+	static <T> T target(String name,Object... args) throws Exception{
+		for(java.lang.reflect.Method m:Class.forName("Targets").getMethods()){
+			if(m.getName().equals(name)) return (T)m.invoke(null,args);
+		}
+		throw new NoSuchMethodException("Targets."+name);
+	}
+}
\ No newline at end of file
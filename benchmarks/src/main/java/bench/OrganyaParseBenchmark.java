@@ -0,0 +1,30 @@
+package bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+
+
+//the time taken to parse each of the bundled fixtures into a new Organya, with the samples already loaded
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class OrganyaParseBenchmark{
+	@Param({"dense","medium","sparse"})
+	public String fixture;
+	
+	private Callable<Object> parser;
+	
+	@Setup
+	public void setup() throws Exception{
+		parser=Fixtures.target("organyaParser",Fixtures.org(fixture));
+	}
+	
+	@Benchmark
+	public Object parse() throws Exception{
+		return parser.call();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,41 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import org.openjdk.jmh.annotations.*;
+
+
+
+//Organya rendering throughput, in sample frames per second, on each of the bundled fixtures with both engines
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class OrganyaRenderBenchmark{
+	//one second of audio per invocation
+	static final int frames=44100;
+	
+	@Param({"dense","medium","sparse"})
+	public String fixture;
+	
+	@Param({"false","true"})
+	public boolean fixedPoint;
+	
+	@Param({"1024"})
+	public int chunkLen;
+	
+	private IntUnaryOperator renderer;
+	
+	@Setup
+	public void setup() throws Exception{
+		renderer=Fixtures.target("organyaRenderer",Fixtures.org(fixture),fixedPoint,chunkLen);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(frames)
+	public int render(){
+		return renderer.applyAsInt(frames);
+	}
+}
\ No newline at end of file
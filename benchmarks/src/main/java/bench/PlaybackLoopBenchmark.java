@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import org.openjdk.jmh.annotations.*;
+
+
+
+//the playback thread's work per sample frame, running Sound.play to a NullSink which never makes it wait, instead of a line
+//this is rendering, the volume ramp, optionally a block monitor, the sync event checks and the sink calls,
+//along with starting and stopping playback once per invocation
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class PlaybackLoopBenchmark{
+	//one second of audio per invocation
+	static final int frames=44100;
+	
+	@Param({"dense"})
+	public String fixture;
+	
+	//the buffer the player uses, which is written in chunks of a quarter of it
+	@Param({"8000"})
+	public int bufferLen;
+	
+	@Param({"false","true"})
+	public boolean monitor;
+	
+	private IntUnaryOperator loop;
+	
+	@Setup
+	public void setup() throws Exception{
+		Object m=monitor? Fixtures.target("peakMonitor"):null;
+		loop=Fixtures.target("playbackLoop",Fixtures.org(fixture),bufferLen,m);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(frames)
+	public int play(){
+		return loop.applyAsInt(frames);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,43 @@
+package bench;
+
+import java.io.File;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+
+
+//the time taken to load a 16 bit stereo wav file of each size, either fully decoded or mapped for streaming
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class WavLoadBenchmark{
+	//in sample frames, so the files are about 256 KB, 4 MB and 64 MB
+	@Param({"65536","1048576","16777216"})
+	public int frames;
+	
+	@Param({"false","true"})
+	public boolean stream;
+	
+	private File file;
+	private Callable<Object> loader;
+	
+	@Setup
+	public void setup() throws Exception{
+		file=File.createTempFile("bench",".wav");
+		Fixtures.target("writeWav",file,frames);
+		loader=Fixtures.target("wavLoader",file,stream);
+	}
+	
+	@TearDown
+	public void tearDown(){
+		file.delete();
+	}
+	
+	@Benchmark
+	public Object load() throws Exception{
+		return loader.call();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.*;
+
+
+
+//checks that the ways of getting an Organya's audio other than render give exactly what render gives,
+//with both engines, for each of the benchmark fixtures
+//this is run from the player directory, so orgsamp.dat and the fixtures are found relative to it
+class RenderRegressionTest{
+	private static final File fixtures=new File("../benchmarks/src/main/resources/fixtures");
+	private static final String[] songs={"dense","medium","sparse"};
+	private static final float sampleRate=30000;
+	private static SampleBank bank;
+	
+	@BeforeAll
+	static void loadSamples() throws IOException{
+		bank=SampleBank.get(new File("../orgsamp.dat"));
+	}
+	
+	private static Organya load(String song,boolean fixedPoint) throws IOException{
+		InputStream in=new FileInputStream(new File(fixtures,song+".org"));
+		try{
+			Organya org=new Organya(in,bank,sampleRate,null);
+			org.setFixedPoint(fixedPoint);
+			return org;
+		}finally{in.close();}
+	}
+	
+	//the intro and three times through the loop, so that looping is covered too
+	private static int length(Organya org){
+		return (org.getSongLen()+2*(org.getSongLen()-org.getLoopPoint()))*org.getClickLen();
+	}
+	
+	@Test
+	void parallelMatchesSequential() throws IOException{
+		ForkJoinPool pool=new ForkJoinPool(4);
+		try{
+			for(String song:songs){
+				for(boolean fixedPoint:new boolean[]{false,true}){
+					Organya sequential=load(song,fixedPoint),parallel=load(song,fixedPoint);
+					int frames=length(sequential);
+					int[] expected=new int[2*frames],actual=new int[2*frames];
+					sequential.render(expected,0,frames);
+					
+					//in a few uneven pieces, so that segments start part of the way through clicks
+					int done=0;
+					for(int piece:new int[]{frames/3,frames/5+17,frames}){
+						int len=Math.min(piece,frames-done);
+						parallel.renderParallel(actual,2*done,len,pool);
+						done+=len;
+					}
+					assertArrayEquals(expected,actual,song+(fixedPoint? " (fixed point)":""));
+				}
+			}
+		}finally{pool.shutdown();}
+	}
+	
+	@Test
+	void cachedMatchesSynthesized() throws Exception{
+		LoopCache cache=new LoopCache(1L<<30);
+		for(String song:songs){
+			for(boolean fixedPoint:new boolean[]{false,true}){
+				Organya synthesized=load(song,fixedPoint),cached=load(song,fixedPoint);
+				cached.setCache(cache);
+				int frames=length(synthesized);
+				int[] expected=new int[2*frames],actual=new int[2*frames];
+				synthesized.render(expected,0,frames);
+				
+				//the first sample frame asks for the song to be cached, and the rest are copied from the cache once it is ready
+				long before=cache.getBytesUsed();
+				cached.render(actual,0,1);
+				for(long end=System.currentTimeMillis()+10000;cache.getBytesUsed()==before;Thread.sleep(10)){
+					assertTrue(System.currentTimeMillis()<end,"timed out waiting for "+song+" to be cached");
+				}
+				Random random=new Random(1);
+				for(int done=1;done<frames;){
+					int len=Math.min(frames-done,1+random.nextInt(5000));
+					cached.render(actual,2*done,len);
+					done+=len;
+				}
+				assertArrayEquals(expected,actual,song+(fixedPoint? " (fixed point)":""));
+				
+				//and after seeking into the loop
+				synthesized.seekToFrame(frames/2);
+				cached.seekToFrame(frames/2);
+				synthesized.render(expected,0,frames/4);
+				cached.render(actual,0,frames/4);
+				assertArrayEquals(expected,actual,song+(fixedPoint? " (fixed point)":"")+" after seeking");
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.*;
+
+
+
+//talks to a StreamServer on localhost, serving the benchmark fixtures, the way a listener would
+class StreamServerTest{
+	private static final File fixtures=new File("../benchmarks/src/main/resources/fixtures");
+	private static final float sampleRate=30000;
+	private static SampleBank bank;
+	private static ServerSocket socket;
+	
+	@BeforeAll
+	static void startServer() throws IOException{
+		bank=SampleBank.get(new File("../orgsamp.dat"));
+		socket=start(new StreamServer(fixtures,bank,sampleRate,null,100));
+	}
+	
+	//serves on a new socket on an unused port, on a daemon thread, and returns the socket
+	private static ServerSocket start(final StreamServer server) throws IOException{
+		final ServerSocket socket=new ServerSocket(0,50,InetAddress.getLoopbackAddress());
+		Thread t=new Thread(new Runnable(){
+			public void run(){
+				try{server.serve(socket);}
+				catch(IOException e){throw new UncheckedIOException(e);}
+			}
+		},"StreamServer");
+		t.setDaemon(true);
+		t.start();
+		return socket;
+	}
+	
+	@AfterAll
+	static void stopServer() throws IOException{
+		socket.close();
+	}
+	
+	//sends request, and returns the response, reading at most len bytes of it
+	private static byte[] fetch(String request,int len) throws IOException{
+		return fetch(socket,request,len);
+	}
+	
+	private static byte[] fetch(ServerSocket socket,String request,int len) throws IOException{
+		Socket s=new Socket(InetAddress.getLoopbackAddress(),socket.getLocalPort());
+		try{
+			s.setSoTimeout(10000);
+			s.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+			InputStream in=s.getInputStream();
+			ByteArrayOutputStream out=new ByteArrayOutputStream();
+			byte[] buffer=new byte[8192];
+			for(int read;out.size()<len && (read=in.read(buffer,0,Math.min(buffer.length,len-out.size())))>=0;) out.write(buffer,0,read);
+			return out.toByteArray();
+		}finally{s.close();}
+	}
+	
+	private static String statusLine(byte[] response){
+		String text=new String(response,StandardCharsets.ISO_8859_1);
+		return text.substring(0,text.indexOf("\r\n"));
+	}
+	
+	@Test
+	void streamsTheSongAsRendered() throws IOException{
+		int frames=100000;
+		byte[] response=fetch("GET /medium.org HTTP/1.0\r\nHost: localhost\r\n\r\n",1<<20);
+		assertEquals("HTTP/1.0 200 OK",statusLine(response));
+		String text=new String(response,StandardCharsets.ISO_8859_1);
+		int body=text.indexOf("\r\n\r\n")+4;
+		assertTrue(response.length>=body+44+4*frames,"only "+response.length+" bytes were streamed");
+		
+		//the same song, rendered here and written the same way
+		InputStream orgStream=new FileInputStream(new File(fixtures,"medium.org"));
+		Organya org;
+		try{org=new Organya(orgStream,bank,sampleRate,null);}
+		finally{orgStream.close();}
+		int[] block=new int[2*frames];
+		org.render(block,0,frames);
+		ByteArrayOutputStream expected=new ByteArrayOutputStream();
+		WavWriter wav=new WavWriter(expected,sampleRate,-1);
+		wav.write(block,0,frames);
+		wav.close();
+		assertArrayEquals(expected.toByteArray(),Arrays.copyOfRange(response,body,body+expected.size()));
+	}
+	
+	@Test
+	void headHasNoBody() throws IOException{
+		byte[] response=fetch("HEAD /sparse.org HTTP/1.1\r\n\r\n",1<<16);
+		assertEquals("HTTP/1.0 200 OK",statusLine(response));
+		assertTrue(new String(response,StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n"));
+	}
+	
+	@Test
+	void rejectsBadRequests() throws IOException{
+		assertEquals("HTTP/1.0 404 Not Found",statusLine(fetch("GET /missing.org HTTP/1.0\r\n\r\n",1<<16)));
+		assertEquals("HTTP/1.0 404 Not Found",statusLine(fetch("GET /../../pom.xml HTTP/1.0\r\n\r\n",1<<16)));
+		assertEquals("HTTP/1.0 404 Not Found",statusLine(fetch("GET /%2e%2e/%2e%2e/benchmarks/src/main/resources/fixtures/dense.org HTTP/1.0\r\n\r\n",1<<16)));
+		assertEquals("HTTP/1.0 405 Method Not Allowed",statusLine(fetch("POST /dense.org HTTP/1.0\r\n\r\n",1<<16)));
+		assertEquals("HTTP/1.0 400 Bad Request",statusLine(fetch("nonsense\r\n\r\n",1<<16)));
+	}
+	
+	@Test
+	void rejectsRequestsWhichNeverEnd() throws IOException{
+		//a request line with no end, which the server has to stop reading before it answers
+		Socket s=new Socket(InetAddress.getLoopbackAddress(),socket.getLocalPort());
+		try{
+			s.setSoTimeout(10000);
+			OutputStream out=s.getOutputStream();
+			out.write("GET /".getBytes(StandardCharsets.ISO_8859_1));
+			byte[] junk=new byte[4096];
+			Arrays.fill(junk,(byte)'a');
+			try{
+				for(int i=0;i<1024;i++) out.write(junk);
+			}catch(SocketException e){
+				//the server closed the connection once it had read enough
+			}
+			BufferedReader in=new BufferedReader(new InputStreamReader(s.getInputStream(),StandardCharsets.ISO_8859_1));
+			assertEquals("HTTP/1.0 431 Request Header Fields Too Large",in.readLine());
+		}finally{s.close();}
+	}
+	
+	@Test
+	void refusesConnectionsOverTheLimit() throws Exception{
+		ServerSocket limited=start(new StreamServer(fixtures,bank,sampleRate,null,1));
+		try{
+			//a listener which connects and then says nothing holds the only connection
+			Socket idle=new Socket(InetAddress.getLoopbackAddress(),limited.getLocalPort());
+			try{
+				BufferedReader in=new BufferedReader(new InputStreamReader(
+					new Socket(InetAddress.getLoopbackAddress(),limited.getLocalPort()).getInputStream(),StandardCharsets.ISO_8859_1));
+				try{assertEquals("HTTP/1.0 503 Service Unavailable",in.readLine());}
+				finally{in.close();}
+			}finally{idle.close();}
+			
+			//once it has gone, the next listener is served, although its thread may take a moment to finish
+			String status=null;
+			for(int i=0;i<100 && !"HTTP/1.0 200 OK".equals(status);i++){
+				if(status!=null) Thread.sleep(20);
+				status=statusLine(fetch(limited,"HEAD /sparse.org HTTP/1.0\r\n\r\n",1<<16));
+			}
+			assertEquals("HTTP/1.0 200 OK",status);
+		}finally{limited.close();}
+	}
+}
\ No newline at end of file
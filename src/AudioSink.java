@@ -0,0 +1,316 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.sampled.*;
+
+
+
+//where Sound.play sends the sample frames it renders
+//the playback thread opens the sink, writes to it, then drains and closes it once playback stops,
+//and sync events with realtime set are timed by the sink's frame position
+//a sink is only used for one playback at a time, but getFramePosition and getLatencyFrames may be called from any thread
+public interface AudioSink{
+	//prepares the sink for sample frames in format, with room for bufferLen sample frames waiting to be played
+	public void open(AudioFormat format,int bufferLen) throws IOException,LineUnavailableException;
+	
+	//begins playing the sample frames written so far, and any written afterwards
+	public void start();
+	
+	//writes frames interleaved sample frames from block, starting at block[offset], blocking while the sink is full
+	//sample values outside of -32768 to 32767 are clipped
+	public void write(int[] block,int offset,int frames) throws IOException;
+	
+	//the number of sample frames which have been played since the sink was opened
+	public long getFramePosition();
+	
+	//the number of sample frames which have been written, but not yet played
+	public long getLatencyFrames();
+	
+	//blocks until every sample frame written has been played
+	public void drain();
+	
+	public void close() throws IOException;
+	
+	//whether the sink plays sample frames at the sample rate, like a sound card, rather than as fast as they are written,
+	//in which case running out of sample frames to play is an underrun
+	public default boolean isRealTime(){return false;}
+	
+	//packs frames sample frames from block into bytes as 16 bit little endian values, clipping them
+	//the values clipped during playback are counted by Sound.finishChunk, before they get here
+	public static void pack(int[] block,int offset,byte[] bytes,int frames){
+		for(int i=0;i<frames*2;i++){
+			int value=block[offset+i];
+			if(value<-32768) value=-32768;
+			if(value>=32768) value=32767;
+			bytes[2*i]=(byte)value;
+			bytes[2*i+1]=(byte)(value>>8);
+		}
+	}
+}
+
+
+
+//plays sample frames through the sound card, on a SourceDataLine
+//this is the sink Sound.play(int) uses
+//closing the sink doesn't close its line, but stops it and keeps it open for the next sink with the same format and buffer length,
+//since opening a line is slow, and clicking from one song to another would otherwise open a new line each time
+//lines which haven't been reused after idleSeconds are closed, and closeIdleLines closes them straight away
+class LineSink implements AudioSink{
+	private SourceDataLine line;
+	private String key;
+	private boolean started;
+	private byte[] bytes=new byte[0];
+	
+	//the line's position when the sink was opened, since a line which is reused carries on counting from where it was
+	private long base;
+	
+	//the open lines which aren't being used, by format and buffer length, the most recently used first
+	//each time a line is released it is wrapped in a new Idle, so that it is only closed if it has been idle since that time
+	private static final Map<String,Deque<Idle>> idle=new HashMap<String,Deque<Idle>>();
+	
+	private static class Idle{
+		public final SourceDataLine line;
+		
+		public Idle(SourceDataLine line){this.line=line;}
+	}
+	
+	//the most lines kept open for each format and buffer length
+	private static final int maxIdle=2;
+	private static final long idleSeconds=30;
+	
+	//idle lines are closed on a single daemon thread
+	private static final ScheduledExecutorService closer=Executors.newSingleThreadScheduledExecutor(Threads.factory("Sound line closer",true,Thread.NORM_PRIORITY));
+	
+	public void open(AudioFormat format,int bufferLen) throws LineUnavailableException{
+		key=format+", "+bufferLen+" sample frames";
+		line=reuse(key);
+		if(line==null){
+			line=(SourceDataLine)AudioSystem.getLine(new DataLine.Info(SourceDataLine.class,format));
+			line.open(format,4*bufferLen);
+		}
+		base=line.getLongFramePosition();
+		started=false;
+	}
+	
+	public void start(){
+		line.start();
+		started=true;
+	}
+	
+	//a line which hasn't been started blocks forever once it's full, so it is started early if the sound card's buffer is shorter
+	//than the one asked for
+	public void write(int[] block,int offset,int frames){
+		if(bytes.length<4*frames) bytes=new byte[4*frames];
+		AudioSink.pack(block,offset,bytes,frames);
+		if(!started && line.available()<4*frames) start();
+		line.write(bytes,0,4*frames);
+	}
+	
+	public long getFramePosition(){return line.getLongFramePosition()-base;}
+	
+	public long getLatencyFrames(){return (line.getBufferSize()-line.available())/4;}
+	
+	public void drain(){line.drain();}
+	
+	//throws away anything which hasn't been played, and keeps the line for another sink
+	public void close(){
+		line.stop();
+		line.flush();
+		release(key,line);
+	}
+	
+	public boolean isRealTime(){return true;}
+	
+	//closes every line which is being kept open, for example to let another program use the sound card
+	public static void closeIdleLines(){
+		List<Idle> lines=new ArrayList<Idle>();
+		synchronized(idle){
+			for(Deque<Idle> d:idle.values()) lines.addAll(d);
+			idle.clear();
+		}
+		for(Idle i:lines) i.line.close();
+	}
+	
+	private static SourceDataLine reuse(String key){
+		synchronized(idle){
+			Deque<Idle> d=idle.get(key);
+			Idle i=d==null? null:d.pollFirst();
+			return i==null? null:i.line;
+		}
+	}
+	
+	private static void release(final String key,SourceDataLine line){
+		final Idle entry=new Idle(line);
+		Idle extra=null;
+		synchronized(idle){
+			Deque<Idle> d=idle.get(key);
+			if(d==null) idle.put(key,d=new ArrayDeque<Idle>());
+			d.addFirst(entry);
+			if(d.size()>maxIdle) extra=d.pollLast();
+		}
+		if(extra!=null) extra.line.close();
+		closer.schedule(new Runnable(){
+			public void run(){
+				//unless the line has been reused since, in which case it was scheduled again when it was released
+				synchronized(idle){
+					Deque<Idle> d=idle.get(key);
+					if(d==null || !d.remove(entry)) return;
+					if(d.isEmpty()) idle.remove(key);
+				}
+				entry.line.close();
+			}
+		},idleSeconds,TimeUnit.SECONDS);
+	}
+}
+
+
+
+//writes sample frames to a wav file, as fast as they are rendered
+//each sample frame counts as played as soon as it is written
+class FileSink implements AudioSink{
+	private final File file;
+	private WavWriter out;
+	private volatile long written;
+	
+	public FileSink(File file){this.file=file;}
+	
+	public void open(AudioFormat format,int bufferLen) throws IOException{
+		written=0;
+		out=new WavWriter(new BufferedOutputStream(new FileOutputStream(file),1<<16),format.getSampleRate(),-1);
+	}
+	
+	public void start(){}
+	
+	public void write(int[] block,int offset,int frames) throws IOException{
+		out.write(block,offset,frames);
+		written+=frames;
+	}
+	
+	public long getFramePosition(){return written;}
+	
+	public long getLatencyFrames(){return 0;}
+	
+	public void drain(){}
+	
+	//the header was written with an unknown length, so the real lengths are filled in once the file is finished
+	public void close() throws IOException{
+		out.close();
+		RandomAccessFile raf=new RandomAccessFile(file,"rw");
+		try{
+			long dataSize=Math.min(4*written,0xFFFFFFFFL-36);
+			raf.seek(4);
+			raf.write(littleEndian(dataSize+36));
+			raf.seek(40);
+			raf.write(littleEndian(dataSize));
+		}finally{raf.close();}
+	}
+	
+	private static byte[] littleEndian(long value){
+		return new byte[]{(byte)value,(byte)(value>>8),(byte)(value>>16),(byte)(value>>24)};
+	}
+}
+
+
+
+//throws sample frames away, for testing and benchmarking without a sound card
+//if realTime is false, each sample frame counts as played as soon as it is written, so playback runs as fast as possible
+//if realTime is true, it behaves like a sound card with a buffer of bufferLen sample frames, playing at the sample rate,
+//which stops when it runs out of sample frames and starts again when more are written
+class NullSink implements AudioSink{
+	private final boolean realTime;
+	private float sampleRate;
+	private int bufferLen;
+	private long written;
+	
+	//when realTime is true, the position of the imaginary sound card was base when System.nanoTime returned baseTime
+	//before start is called, baseTime is -1, and nothing is played
+	private long base,baseTime;
+	
+	public NullSink(boolean realTime){this.realTime=realTime;}
+	
+	public synchronized void open(AudioFormat format,int bufferLen){
+		sampleRate=format.getSampleRate();
+		this.bufferLen=bufferLen;
+		written=base=0;
+		baseTime=-1;
+	}
+	
+	public synchronized void start(){
+		if(baseTime<0) baseTime=System.nanoTime();
+	}
+	
+	public void write(int[] block,int offset,int frames){
+		if(realTime){
+			//wait for there to be room in the imaginary buffer
+			for(;;){
+				long wait;
+				synchronized(this){
+					wait=baseTime<0? 0:getLatencyFrames()+frames-bufferLen;
+					if(wait<=0) break;
+				}
+				sleepFrames(wait);
+			}
+		}
+		synchronized(this){
+			//if the sound card ran out of sample frames, it starts again from now
+			if(realTime && baseTime>=0 && getFramePosition()==written){
+				base=written;
+				baseTime=System.nanoTime();
+			}
+			written+=frames;
+		}
+	}
+	
+	public synchronized long getFramePosition(){
+		if(!realTime) return written;
+		if(baseTime<0) return 0;
+		return Math.min(written,base+(long)((System.nanoTime()-baseTime)*(double)sampleRate/1e9));
+	}
+	
+	public synchronized long getLatencyFrames(){return written-getFramePosition();}
+	
+	public void drain(){
+		if(!realTime) return;
+		for(long left;(left=getLatencyFrames())>0;) sleepFrames(left);
+	}
+	
+	public void close(){}
+	
+	public boolean isRealTime(){return realTime;}
+	
+	private void sleepFrames(long frames){
+		long nanos=(long)(frames*1e9/sampleRate);
+		try{Thread.sleep(nanos/1000000,(int)(nanos%1000000));}
+		catch(InterruptedException e){Thread.currentThread().interrupt();}
+	}
+}
+
+
+
+//keeps every sample frame written to it, as they would be sent to the sound card, for testing
+//each sample frame counts as played as soon as it is written
+class MemorySink implements AudioSink{
+	private short[] samples=new short[0];
+	private int frames;
+	
+	public synchronized void open(AudioFormat format,int bufferLen){frames=0;}
+	
+	public void start(){}
+	
+	public synchronized void write(int[] block,int offset,int frames){
+		if(samples.length<2*(this.frames+frames)) samples=Arrays.copyOf(samples,Math.max(2*(this.frames+frames),2*samples.length));
+		for(int i=0;i<2*frames;i++) samples[2*this.frames+i]=(short)Math.max(-32768,Math.min(block[offset+i],32767));
+		this.frames+=frames;
+	}
+	
+	public synchronized long getFramePosition(){return frames;}
+	
+	public long getLatencyFrames(){return 0;}
+	
+	public void drain(){}
+	
+	public void close(){}
+	
+	//the interleaved sample frames written since the sink was last opened
+	public synchronized short[] getSamples(){return Arrays.copyOf(samples,2*frames);}
+}
\ No newline at end of file
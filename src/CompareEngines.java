@@ -0,0 +1,63 @@
+import java.io.*;
+
+
+
+//measures how far the output of the fixed point Organya engine is from the floating point engine,
+//and how fast each of them is
+//usage: java CompareEngines <org file>...
+//each org file is rendered through its intro and its loop once, at a sample rate of 30000, using orgsamp.dat
+//for each one, this prints the largest difference between any two sample values, the RMS of the differences,
+//the signal to noise ratio of the fixed point output, treating the floating point output as the signal,
+//and the speed of each engine as a multiple of real time, timed after both engines have rendered the song warmUpPasses times,
+//so that the timings are of compiled code rather than the interpreter
+public class CompareEngines{
+	public static void main(String[] args) throws IOException{
+		if(args.length==0){
+			System.err.println("usage: java CompareEngines <org file>...");
+			System.exit(1);
+		}
+		SampleBank bank=SampleBank.get(new File("orgsamp.dat"));
+		for(String file:args){
+			InputStream in=new FileInputStream(file);
+			Organya exact;
+			try{exact=new Organya(in,bank,sampleRate,null);}
+			finally{in.close();}
+			Organya fixed=new Organya(exact,null);
+			fixed.setFixedPoint(true);
+			
+			int frames=(int)Render.length(exact,1);
+			int[] a=new int[2*frames],b=new int[2*frames];
+			for(int pass=0;pass<warmUpPasses;pass++){
+				new Organya(exact,null).render(a,0,frames);
+				new Organya(fixed,null).render(b,0,frames);
+			}
+			long exactTime=System.nanoTime();
+			exact.render(a,0,frames);
+			exactTime=System.nanoTime()-exactTime;
+			long fixedTime=System.nanoTime();
+			fixed.render(b,0,frames);
+			fixedTime=System.nanoTime()-fixedTime;
+			
+			long maxDiff=0;
+			double noise=0,signal=0;
+			for(int i=0;i<2*frames;i++){
+				long diff=Math.abs((long)a[i]-b[i]);
+				maxDiff=Math.max(maxDiff,diff);
+				noise+=(double)diff*diff;
+				signal+=(double)a[i]*a[i];
+			}
+			System.out.println(file+": max difference "+maxDiff+
+				", RMS difference "+String.format("%.3f",Math.sqrt(noise/(2*frames)))+
+				", SNR "+(noise==0? "infinite":String.format("%.1f dB",10*Math.log10(signal/noise)))+
+				", floating point "+speed(frames,exactTime)+"x real time"+
+				", fixed point "+speed(frames,fixedTime)+"x real time");
+		}
+	}
+	
+	private static int speed(int frames,long time){
+		return (int)(frames/sampleRate/(time/1e9));
+	}
+	
+	private static final float sampleRate=30000;
+	private static final int warmUpPasses=3;
+}
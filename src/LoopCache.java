@@ -0,0 +1,241 @@
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+//a cache of the rendered audio of Organya songs, so that a song which is played again costs no synthesis at all
+//an Organya only uses a cache if one is set with Organya.setCache
+//the first time a song is played with a cache set, it is rendered on a background thread, and once that is done,
+//that Organya and any others playing the same song at the same sample rate with the same engine copy their output from it
+//songs are keyed by a hash of their content, so the same song loaded twice is only rendered once
+//the least recently used songs are dropped once the cache holds more than its budget, where a song is used each time audio is copied from it
+//songs which an Organya is still copying from are never dropped, since their audio would stay in memory anyway,
+//so a song which can't fit alongside the ones in use isn't cached until enough of them have been released
+class LoopCache{
+	private final long budget;
+	private long used;
+	private final Map<Key,Entry> entries=new HashMap<Key,Entry>();
+	private final Set<Key> building=new HashSet<Key>(),failed=new HashSet<Key>();
+	
+	//songs which were removed by clear while they were being copied from, which still count against the budget until they are released
+	private final List<Entry> retained=new ArrayList<Entry>();
+	
+	//the songs which didn't fit alongside the ones in use, and the bytes they need
+	private final Map<Key,Long> crowdedOut=new HashMap<Key,Long>();
+	
+	//the most times through the loop which are rendered, waiting for the loop to start repeating exactly
+	private static final int maxPasses=4;
+	
+	//songs are rendered on a single daemon thread shared by all caches
+	private static final Executor builder=Threads.daemonExecutor("Organya loop cache",Thread.MIN_PRIORITY);
+	
+	//budget is the most memory the rendered audio may take up, in bytes
+	//rendered audio takes 8 bytes per sample frame, so a minute of audio at 44100 Hz takes about 20 MB
+	public LoopCache(long budget){
+		if(budget<0) throw new IllegalArgumentException("Negative budget: "+budget);
+		this.budget=budget;
+	}
+	
+	//the memory taken up by rendered audio, including songs removed by clear which are still being copied from
+	public synchronized long getBytesUsed(){
+		trimRetained();
+		return used;
+	}
+	
+	public long getBudget(){return budget;}
+	
+	//drops every song which isn't being copied from
+	public synchronized void clear(){
+		for(Entry e:entries.values()){
+			if(e.inUse()) retained.add(e);
+			else used-=e.bytes();
+		}
+		entries.clear();
+		failed.clear();
+		crowdedOut.clear();
+	}
+	
+	//returns the rendered audio for key, which org then copies from until it calls release, or null if it isn't in the cache
+	//in that case, unless it is already being rendered or can't be cached, it is rendered from a copy of org
+	synchronized Entry lookup(final Key key,Organya org){
+		Entry e=entries.get(key);
+		if(e!=null){
+			e.users.add(new WeakReference<Organya>(org));
+			e.lastUsed=System.nanoTime();
+			return e;
+		}
+		if(building.contains(key) || failed.contains(key)) return null;
+		Long needed=crowdedOut.get(key);
+		if(needed!=null){
+			if(used-idleBytes()+needed>budget) return null;
+			crowdedOut.remove(key);
+		}
+		building.add(key);
+		final Organya copy=new Organya(org,null);
+		builder.execute(new Runnable(){
+			public void run(){
+				Entry e=null;
+				try{e=build(copy,budget);}
+				finally{add(key,e);}
+			}
+		});
+		return null;
+	}
+	
+	//called by an Organya which has stopped copying from e
+	synchronized void release(Entry e,Organya org){
+		for(Iterator<WeakReference<Organya>> i=e.users.iterator();i.hasNext();){
+			if(i.next().get()==org){
+				i.remove();
+				break;
+			}
+		}
+	}
+	
+	private synchronized void add(Key key,Entry e){
+		building.remove(key);
+		if(e==null){failed.add(key);return;}
+		trimRetained();
+		e.lastUsed=System.nanoTime();
+		entries.put(key,e);
+		used+=e.bytes();
+		
+		//the least recently used songs which aren't in use are dropped until the rest fit,
+		//which is the new one itself if the others are all in use
+		while(used>budget && entries.get(key)==e){
+			Key oldest=null;
+			long oldestTime=0;
+			for(Map.Entry<Key,Entry> me:entries.entrySet()){
+				Entry o=me.getValue();
+				if(!o.inUse() && (oldest==null || o.lastUsed-oldestTime<0)){
+					oldest=me.getKey();
+					oldestTime=o.lastUsed;
+				}
+			}
+			used-=entries.remove(oldest).bytes();
+		}
+		if(entries.get(key)!=e) crowdedOut.put(key,e.bytes());
+	}
+	
+	//forgets the songs removed by clear which are no longer being copied from
+	private void trimRetained(){
+		for(Iterator<Entry> i=retained.iterator();i.hasNext();){
+			Entry e=i.next();
+			if(e.inUse()) continue;
+			i.remove();
+			used-=e.bytes();
+		}
+	}
+	
+	//the bytes taken up by songs which could be dropped, because nothing is copying from them
+	private long idleBytes(){
+		trimRetained();
+		long idle=0;
+		for(Entry e:entries.values()) if(!e.inUse()) idle+=e.bytes();
+		return idle;
+	}
+	
+	//renders org, which must be at the beginning of its song, until the state at the end of a time through the loop
+	//is the same as at the end of the time before, since from then on, every time through the loop is the same
+	//everything before that last time through the loop is the intro
+	//this way, notes from before the loop point which are still playing when the loop starts, and notes from the end of the loop
+	//which are still playing when it starts again, are both in the audio exactly as render would produce them
+	//returns null if the loop doesn't settle within maxPasses times through, or if the audio would take more than maxBytes
+	static Entry build(Organya org,long maxBytes){
+		long clickLen=org.getClickLen();
+		long songEnd=org.getSongLen()*clickLen,loopLen=songEnd-org.getLoopPoint()*clickLen;
+		long maxFrames=Math.min(maxBytes/8,Integer.MAX_VALUE/2);
+		if(loopLen<=0 || songEnd+loopLen>maxFrames) return null;
+		
+		int[] intro=new int[2*(int)songEnd];
+		org.render(intro,0,(int)songEnd);
+		Organya.Snapshot last=org.snapshot();
+		for(int pass=0;pass<maxPasses;pass++){
+			int[] loop=new int[2*(int)loopLen];
+			org.render(loop,0,(int)loopLen);
+			Organya.Snapshot now=org.snapshot();
+			if(now.sameAs(last)) return new Entry(intro,loop);
+			
+			if(intro.length/2+2*loopLen>maxFrames) return null;
+			int[] longer=Arrays.copyOf(intro,intro.length+loop.length);
+			System.arraycopy(loop,0,longer,intro.length,loop.length);
+			intro=longer;
+			last=now;
+		}
+		return null;
+	}
+	
+	//the rendered audio of a song, which is never modified once it has been rendered
+	//it is made up of the intro, which is played once, followed by the loop, which is repeated forever
+	static class Entry{
+		private final int[] intro,loop;
+		private final long introFrames,loopFrames;
+		
+		//when audio was last copied from this, by System.nanoTime, and the Organyas copying from it, which the cache uses to choose what to drop
+		//an Organya which is thrown away without leaving the cache stops counting as a user once it has been garbage collected
+		//users is only used while the cache is locked
+		private volatile long lastUsed;
+		private final List<WeakReference<Organya>> users=new ArrayList<WeakReference<Organya>>();
+		
+		private Entry(int[] intro,int[] loop){
+			this.intro=intro;
+			this.loop=loop;
+			introFrames=intro.length/2;
+			loopFrames=loop.length/2;
+		}
+		
+		long bytes(){return 4L*(intro.length+loop.length);}
+		
+		private boolean inUse(){
+			for(Iterator<WeakReference<Organya>> i=users.iterator();i.hasNext();) if(i.next().get()==null) i.remove();
+			return !users.isEmpty();
+		}
+		
+		//copies frames sample frames, starting pos sample frames into the song, into buffer,
+		//and returns the position after them, which is kept within the intro and one time through the loop
+		long copy(long pos,int[] buffer,int offset,int frames){
+			lastUsed=System.nanoTime();
+			if(pos>=introFrames) pos=introFrames+(pos-introFrames)%loopFrames;
+			while(frames>0){
+				int[] src=pos<introFrames? intro:loop;
+				int start=(int)(pos<introFrames? pos:pos-introFrames);
+				int len=Math.min(frames,src.length/2-start);
+				System.arraycopy(src,2*start,buffer,offset,2*len);
+				offset+=2*len;
+				frames-=len;
+				pos+=len;
+				if(pos==introFrames+loopFrames) pos=introFrames;
+			}
+			return pos;
+		}
+	}
+	
+	//identifies a song rendered with particular settings
+	//samples is the sample data, which is compared by identity, since it is normally shared through SampleBank.get
+	static class Key{
+		private final byte[] hash;
+		private final float sampleRate;
+		private final boolean fixedPoint;
+		private final Object samples;
+		
+		Key(byte[] hash,float sampleRate,boolean fixedPoint,Object samples){
+			this.hash=hash;
+			this.sampleRate=sampleRate;
+			this.fixedPoint=fixedPoint;
+			this.samples=samples;
+		}
+		
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Key)) return false;
+			Key k=(Key)o;
+			return Arrays.equals(hash,k.hash) && sampleRate==k.sampleRate && fixedPoint==k.fixedPoint && samples==k.samples;
+		}
+		
+		@Override
+		public int hashCode(){
+			return Arrays.hashCode(hash)*31+Float.floatToIntBits(sampleRate)+(fixedPoint? 1:0);
+		}
+	}
+}
\ No newline at end of file
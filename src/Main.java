@@ -2,7 +2,11 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.imageio.ImageIO;
 import javax.swing.*;
 
@@ -37,28 +41,78 @@ public class Main{
 
 
 
-class Levels implements Monitor{
-	private int delay,timer,lpeak,rpeak,clip;
+//a level meter, which measures the peak and RMS levels of each chunk as it's buffered
+//the playback thread only publishes its measurements, and a Swing timer picks them up and repaints the display
+class Levels implements BlockMonitor{
+	private final AtomicReference<Reading> latest=new AtomicReference<Reading>();
+	private int lpeak,rpeak,lrms,rrms,clip;
 	
-	public Levels(int delay){
-		this.delay=delay;
+	//the measurements of the chunks buffered since the timer last picked them up
+	private static class Reading{
+		public final int lpeak,rpeak,frames;
+		public final double lsquares,rsquares;
+		
+		public Reading(int lpeak,int rpeak,double lsquares,double rsquares,int frames){
+			this.lpeak=lpeak;
+			this.rpeak=rpeak;
+			this.lsquares=lsquares;
+			this.rsquares=rsquares;
+			this.frames=frames;
+		}
+		
+		public Reading merge(Reading r){
+			return new Reading(Math.max(lpeak,r.lpeak),Math.max(rpeak,r.rpeak),lsquares+r.lsquares,rsquares+r.rsquares,frames+r.frames);
+		}
+	}
+	
+	//the display is checked for new measurements fps times a second
+	public Levels(final Component display,int fps){
+		javax.swing.Timer timer=new javax.swing.Timer(1000/fps,new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e){if(update()) display.repaint();}
+		});
+		timer.start();
 	}
 	
 	@Override
-	public void monitor(SampleFrame s){
-		if(s==null) return;
-		if(lpeak>0) lpeak--;
-		if(rpeak>0) rpeak--;
-		if(clip>0) clip--;
-		lpeak=Math.max(lpeak,Math.abs(s.left));
-		rpeak=Math.max(rpeak,Math.abs(s.right));
+	public void monitor(SampleBlock b){
+		if(b==null) return;
+		int lp=0,rp=0,frames=b.getFrames();
+		double ls=0,rs=0;
+		for(int i=0;i<frames;i++){
+			int l=b.getLeft(i),r=b.getRight(i);
+			lp=Math.max(lp,Math.abs(l));
+			rp=Math.max(rp,Math.abs(r));
+			ls+=(double)l*l;
+			rs+=(double)r*r;
+		}
+		Reading reading=new Reading(lp,rp,ls,rs,frames);
+		for(;;){
+			Reading old=latest.get();
+			if(latest.compareAndSet(old,old==null? reading:old.merge(reading))) return;
+		}
+	}
+	
+	//takes the measurements published since the last call, and returns whether there were any
+	//the peaks fall by one for every sample frame buffered in the meantime
+	private boolean update(){
+		Reading r=latest.getAndSet(null);
+		if(r==null) return false;
+		lpeak=Math.max(lpeak-r.frames,0);
+		rpeak=Math.max(rpeak-r.frames,0);
+		clip=Math.max(clip-r.frames,0);
+		lpeak=Math.max(lpeak,r.lpeak);
+		rpeak=Math.max(rpeak,r.rpeak);
 		if(lpeak>32767) lpeak=clip=32767;
 		if(rpeak>32767) rpeak=clip=32767;
-		if(++timer==delay){timer=0;Main.panel.repaint();}
+		lrms=Math.min((int)Math.sqrt(r.lsquares/r.frames),32767);
+		rrms=Math.min((int)Math.sqrt(r.rsquares/r.frames),32767);
+		return true;
 	}
 	
 	public void reset(){
-		timer=lpeak=rpeak=clip=0;
+		latest.set(null);
+		lpeak=rpeak=lrms=rrms=clip=0;
 	}
 	
 	public void paint(Graphics g,int x,int y,int w,int h){
@@ -76,6 +130,9 @@ class Levels implements Monitor{
 			g.setColor(new Color(i,255,0));
 			g.drawLine(x+w/2,y+255-i,x+w-1,y+255-i);
 		}
+		g.setColor(Color.white);
+		g.drawLine(x,y+255-lrms/128,x+w/2-1,y+255-lrms/128);
+		g.drawLine(x+w/2,y+255-rrms/128,x+w-1,y+255-rrms/128);
 	}
 }
 
@@ -87,60 +144,148 @@ class JJPanel extends JPanel{
 	private Organya org;
 	private File orgFile;
 	private Levels monitor;
+	
+	//songs played again, including each time they loop, are copied from here rather than synthesized
+	private static final LoopCache cache=new LoopCache(64L<<20);
+	
+	//songs start with a 40 ms buffer, which grows towards the full 8000 sample frames only if the machine can't keep up
+	private static final int minBuffer=1200;
 	private int dirqty,scrollpos,dragging,dragfrom,oldscrollpos;
 	private boolean hasParent,playing;
+	
+	//the directory being listed, which the listing thread checks so that it stops as soon as another one is chosen
+	private volatile int listing;
+	
+	//the least time between showing the entries listed so far, in milliseconds
+	private static final long listInterval=100;
+	
+	//directories are listed on a single daemon thread
+	private static final ExecutorService lister=Threads.daemonExecutor("Directory listing");
+	
+	//created once, rather than on every repaint
+	private static final Font listFont=new Font("Verdana",Font.BOLD,12),labelFont=new Font("Verdana",Font.PLAIN,10);
 	private double volume;
 	
 	public JJPanel(){
 		setDir(new File("").getAbsoluteFile());
 		playing=false;
-		monitor=new Levels(1000);
+		monitor=new Levels(this,30);
 		volume=1;
 	}
 	
-	private void setDir(File file){
-		files=file.listFiles();
-		int fileqty=files.length;
-		dirqty=0;
-		int index=0;
-		while(index<fileqty){
-			if(files[index].isDirectory() || files[index].getName().endsWith(".org")){
-				if(files[index++].isDirectory()) dirqty++;
-			}else{
-				File temp=files[--fileqty];
-				files[fileqty]=files[index];
-				files[index]=temp;
-			}
-		}
-		
-		File[] temp=new File[fileqty];
-		for(int i=0;i<fileqty;i++) temp[i]=files[i];
-		Arrays.sort(temp,new Comparator<File>(){
-			@Override
-			public int compare(File o1,File o2){
-				if(o1.isDirectory()^o2.isDirectory()) return o1.isDirectory()? -1:1;
-				String n1=o1.getName(),n2=o2.getName();
-				if(!o1.isDirectory()){n1=n1.substring(0,n1.length()-4);n2=n2.substring(0,n2.length()-4);}
-				return n1.compareToIgnoreCase(n2);
+	//lists the directory in the background, so that even a huge one, or one on a slow network drive, never holds up the interface
+	//the entries found so far are shown, sorted, every so often while the rest are still being listed
+	//the same listing feeds the org index, which fills in the durations of the songs as it reads their headers
+	private void setDir(final File file){
+		final int id=++listing;
+		final File parent=file.getParentFile();
+		hasParent=parent!=null;
+		showDir(parent,new ArrayList<File>(),new ArrayList<File>());
+		final OrgIndex.Scan scan=OrgIndex.getDefault().scan(file,new Runnable(){
+			public void run(){repaint();}
+		});
+		lister.execute(new Runnable(){
+			public void run(){
+				//the entries shown so far, which are sorted, and the ones found since, which aren't yet
+				ArrayList<File> dirs=new ArrayList<File>(),orgs=new ArrayList<File>();
+				ArrayList<File> newDirs=new ArrayList<File>(),newOrgs=new ArrayList<File>();
+				long lastShown=System.currentTimeMillis();
+				boolean complete=false;
+				try{
+					DirectoryStream<Path> stream=Files.newDirectoryStream(file.toPath());
+					try{
+						for(Path p:stream){
+							if(listing!=id) break;
+							BasicFileAttributes attrs;
+							try{attrs=Files.readAttributes(p,BasicFileAttributes.class);}
+							catch(IOException e){
+								//it has gone since it was listed
+								continue;
+							}
+							if(attrs.isDirectory()) newDirs.add(p.toFile());
+							else if(p.getFileName().toString().endsWith(".org")){
+								newOrgs.add(p.toFile());
+								scan.found(p,attrs);
+							}
+							if(System.currentTimeMillis()-lastShown>=listInterval){
+								dirs=merge(dirs,newDirs,byName);
+								orgs=merge(orgs,newOrgs,bySongName);
+								show(id,parent,dirs,orgs);
+								lastShown=System.currentTimeMillis();
+							}
+						}
+						complete=listing==id;
+					}finally{stream.close();}
+				}catch(IOException e){
+					e.printStackTrace();
+				}catch(DirectoryIteratorException e){
+					e.printStackTrace();
+				}
+				scan.finish(complete);
+				if(listing!=id) return;
+				show(id,parent,merge(dirs,newDirs,byName),merge(orgs,newOrgs,bySongName));
 			}
 		});
-		
-		File parent=file.getParentFile();
-		index=(hasParent=parent!=null)? 1:0;
-		files=new File[index+fileqty];
-		for(File f:temp) files[index++]=f;
-		if(hasParent){files[0]=parent;dirqty++;}
 		repaint();
 	}
 	
+	//sorts the entries in batch, and merges them into a new list with the ones in sorted, then empties batch
+	//this way, each batch is only sorted once, rather than sorting everything found so far each time
+	private static ArrayList<File> merge(ArrayList<File> sorted,ArrayList<File> batch,Comparator<File> order){
+		Collections.sort(batch,order);
+		ArrayList<File> merged=new ArrayList<File>(sorted.size()+batch.size());
+		int i=0,j=0;
+		while(i<sorted.size() && j<batch.size()) merged.add(order.compare(sorted.get(i),batch.get(j))<=0? sorted.get(i++):batch.get(j++));
+		while(i<sorted.size()) merged.add(sorted.get(i++));
+		while(j<batch.size()) merged.add(batch.get(j++));
+		batch.clear();
+		return merged;
+	}
+	
+	//shows the entries listed so far if the directory is still the one being listed
+	//the lists are never changed once they have been passed here, so they don't need to be copied
+	private void show(final int id,final File parent,final ArrayList<File> dirs,final ArrayList<File> orgs){
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){if(listing==id) showDir(parent,dirs,orgs);}
+		});
+	}
+	
+	private void showDir(File parent,ArrayList<File> dirs,ArrayList<File> orgs){
+		int index=parent!=null? 1:0;
+		dirqty=index+dirs.size();
+		File[] files=new File[dirqty+orgs.size()];
+		for(File f:dirs) files[index++]=f;
+		for(File f:orgs) files[index++]=f;
+		if(parent!=null) files[0]=parent;
+		this.files=files;
+		repaint();
+	}
+	
+	private static final Comparator<File> byName=new Comparator<File>(){
+		@Override
+		public int compare(File o1,File o2){
+			return o1.getName().compareToIgnoreCase(o2.getName());
+		}
+	};
+	
+	//org files are sorted without their extension, so that "song.org" comes before "song 2.org"
+	private static final Comparator<File> bySongName=new Comparator<File>(){
+		@Override
+		public int compare(File o1,File o2){
+			String n1=o1.getName(),n2=o2.getName();
+			return n1.substring(0,n1.length()-4).compareToIgnoreCase(n2.substring(0,n2.length()-4));
+		}
+	};
+	
 	private void play(){
 		if(org==null) return;
 		try{org.play(8000);playing=true;repaint();}
 		catch(Exception e){e.printStackTrace();}
 	}
 	
+	//waits for the line to be released, so that the next song can reuse it instead of opening another
 	private void pause(){
-		if(org!=null) org.stop();
+		if(org!=null) org.stopAndWait();
 		playing=false;
 	}
 	
@@ -159,8 +304,11 @@ class JJPanel extends JPanel{
 		g.setColor(Color.white);
 		g.fillRect(0,0,w,h);
 		g.setColor(Color.black);
-		g.setFont(new Font("Verdana",Font.BOLD,12));
-		for(int i=0;i<files.length;i++){
+		g.setFont(listFont);
+		
+		//only the rows which can be seen are drawn
+		int first=scrollpos/20,last=Math.min(files.length,(scrollpos+h)/20+1);
+		for(int i=first;i<last;i++){
 			int iconX=150,iconY=0;
 			boolean isParent=hasParent && i==0;
 			if(i<dirqty){if(!isParent) iconX=180;}
@@ -174,6 +322,13 @@ class JJPanel extends JPanel{
 			g.drawImage(Main.buttons,0,y,30,y+20,iconX,iconY,iconX+30,iconY+20,null);
 			String name=isParent? "[parent directory]":files[i].getName();
 			g.drawString(name.substring(0,name.length()-(i<dirqty? 0:4)),33,y+17);
+			
+			OrgIndex.Info info=i<dirqty? null:OrgIndex.getDefault().get(files[i]);
+			if(info!=null){
+				long seconds=info.getDurationMillis()/1000;
+				String duration=seconds/60+":"+(seconds%60<10? "0":"")+seconds%60;
+				g.drawString(duration,w-175-g.getFontMetrics().stringWidth(duration),y+17);
+			}
 		}
 		
 		if(maxscroll>0){
@@ -198,7 +353,7 @@ class JJPanel extends JPanel{
 		g.setColor(Color.white);
 		g.fillRect(x,40,100,h-40);
 		g.setColor(Color.black);
-		g.setFont(new Font("Verdana",Font.PLAIN,10));
+		g.setFont(labelFont);
 		g.drawString("Volume: "+((int)(volume*100+.5))+"%",x+8,h-10);
 		g.drawLine(x,40,x,h);
 		g.drawLine(x+50,55,x+50,h-45);
@@ -243,8 +398,10 @@ class JJPanel extends JPanel{
 					if(playing) pause();
 					try{
 						InputStream in=new FileInputStream(files[index]);
-						org=new Organya(in,new FileInputStream("orgsamp.dat"),30000,monitor);
+						org=new Organya(in,SampleBank.get(new File("orgsamp.dat")),30000,monitor);
+						org.setCache(cache);
 						org.setVolume(volume,0,false);
+						org.setAdaptiveBuffer(minBuffer);
 						monitor.reset();
 						play();
 					}catch(IOException e){e.printStackTrace();}
@@ -0,0 +1,239 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+//an index of the org files in the directories the player has looked at, which survives between runs
+//only the header of each file is read, which is enough to know its length without loading the song
+//the index is kept in memory, and saved to a file after each directory is scanned
+//a file's header is read again whenever a scan finds that its size or modification time has changed,
+//and files which a scan no longer finds are dropped from the index
+class OrgIndex{
+	private final File store;
+	private final Map<String,Entry> entries=new ConcurrentHashMap<String,Entry>();
+	
+	//the id of the scan running now, which stops when a new one is started
+	private final AtomicInteger scan=new AtomicInteger();
+	
+	//the least time between calls to the listener of a scan, in milliseconds
+	private static final long updateInterval=100;
+	
+	//written at the start of the index file, and changed whenever its format changes
+	private static final int version=0x4F524731;
+	
+	//headers are read on a single daemon thread, so that the browser never waits for them
+	private static final ExecutorService scanner=Threads.daemonExecutor("Org index");
+	
+	//the header of an org file, as read by Organya
+	static class Info{
+		//the length of a click, in milliseconds, the click the song loops back to, and the length of the song in clicks
+		public final int wait,loopPoint,songLen;
+		
+		//the number of events on each track
+		public final int[] events;
+		
+		private Info(int wait,int loopPoint,int songLen,int[] events){
+			this.wait=wait;
+			this.loopPoint=loopPoint;
+			this.songLen=songLen;
+			this.events=events;
+		}
+		
+		//the length of the song, including the intro and one time through the loop, like Organya.getDurationMillis
+		public long getDurationMillis(){return (long)songLen*wait;}
+	}
+	
+	//an indexed file, where info is null if its header couldn't be read
+	private static class Entry{
+		public final long size,modified;
+		public final Info info;
+		
+		public Entry(long size,long modified,Info info){
+			this.size=size;
+			this.modified=modified;
+			this.info=info;
+		}
+	}
+	
+	//loads the index saved in store, if there is one
+	//an index file which can't be read is ignored, and replaced the next time the index is saved
+	public OrgIndex(File store){
+		this.store=store;
+		if(!store.exists()) return;
+		try{
+			DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(store)));
+			try{
+				if(in.readInt()!=version) return;
+				for(int n=in.readInt();n>0;n--){
+					String path=in.readUTF();
+					long size=in.readLong(),modified=in.readLong();
+					Info info=null;
+					if(in.readBoolean()){
+						int wait=in.readInt(),loopPoint=in.readInt(),songLen=in.readInt();
+						int[] events=new int[16];
+						for(int j=0;j<16;j++) events[j]=in.readInt();
+						info=new Info(wait,loopPoint,songLen,events);
+					}
+					entries.put(path,new Entry(size,modified,info));
+				}
+			}finally{in.close();}
+		}catch(IOException e){
+			entries.clear();
+		}
+	}
+	
+	//the index kept in the user's home directory, which is shared by the whole player
+	static OrgIndex getDefault(){return Default.index;}
+	
+	private static class Default{
+		static final OrgIndex index=new OrgIndex(new File(System.getProperty("user.home"),".organya-index"));
+	}
+	
+	//returns what is known about file, or null if it hasn't been indexed or isn't an org file
+	//this never touches the file system, so it may be called while painting,
+	//but it may be out of date until the directory has been scanned again
+	public Info get(File file){
+		Entry e=entries.get(file.getAbsolutePath());
+		return e==null? null:e.info;
+	}
+	
+	//starts indexing the org files in dir, which whoever is listing dir passes to Scan.found as it comes across them,
+	//so that the directory is only listed once, and each file's attributes are only read once
+	//headers which are new or have changed since they were indexed are read on a background thread,
+	//and once the listing is finished, files in dir which weren't found are forgotten, and the index is saved
+	//while that goes on, listener is run every so often if anything has changed, and once more at the end if so
+	//starting a new scan stops the one before it
+	public Scan scan(File dir,Runnable listener){return new Scan(dir,listener);}
+	
+	class Scan{
+		private final int id=scan.incrementAndGet();
+		private final File dir;
+		private final Runnable listener;
+		
+		//these are only used on the scanner thread
+		private final Set<String> found=new HashSet<String>();
+		private boolean changed,unsaved;
+		private long lastUpdate=System.currentTimeMillis();
+		
+		private Scan(File dir,Runnable listener){
+			this.dir=dir;
+			this.listener=listener;
+		}
+		
+		//indexes the org file at p, whose attributes are attrs, unless it hasn't changed
+		public void found(final Path p,final BasicFileAttributes attrs){
+			scanner.execute(new Runnable(){
+				public void run(){
+					if(scan.get()!=id) return;
+					found.add(p.toAbsolutePath().toString());
+					if(update(p,attrs)) changed=unsaved=true;
+					if(changed && System.currentTimeMillis()-lastUpdate>=updateInterval){
+						listener.run();
+						changed=false;
+						lastUpdate=System.currentTimeMillis();
+					}
+				}
+			});
+		}
+		
+		//called once dir has been listed, where complete is false if listing it failed or was stopped part of the way through,
+		//in which case files which weren't found are kept, since they may well still be there
+		public void finish(final boolean complete){
+			scanner.execute(new Runnable(){
+				public void run(){
+					if(scan.get()!=id) return;
+					if(complete && prune(dir,found)) changed=unsaved=true;
+					if(changed) listener.run();
+					if(unsaved) save();
+				}
+			});
+		}
+	}
+	
+	//removes the entries for files in dir which aren't in found, and returns whether there were any
+	private boolean prune(File dir,Set<String> found){
+		File parent=dir.getAbsoluteFile();
+		boolean removed=false;
+		for(Iterator<String> i=entries.keySet().iterator();i.hasNext();){
+			String path=i.next();
+			if(!found.contains(path) && parent.equals(new File(path).getParentFile())){
+				i.remove();
+				removed=true;
+			}
+		}
+		return removed;
+	}
+	
+	//indexes the file at p, whose attributes are attrs, again if it has changed, and returns whether it has
+	private boolean update(Path p,BasicFileAttributes attrs){
+		if(!attrs.isRegularFile()) return false;
+		String path=p.toAbsolutePath().toString();
+		long size=attrs.size(),modified=attrs.lastModifiedTime().toMillis();
+		Entry old=entries.get(path);
+		if(old!=null && old.size==size && old.modified==modified) return false;
+		
+		Info info=null;
+		try{
+			InputStream in=Files.newInputStream(p);
+			try{info=readHeader(in);}
+			finally{in.close();}
+		}catch(IOException e){
+			//the header is missing or truncated, or the file has gone since it was listed,
+			//either of which is remembered so that it isn't read again until it changes
+		}
+		entries.put(path,new Entry(size,modified,info));
+		return true;
+	}
+	
+	//reads the header of an org file, which is 6 bytes of version string, 12 bytes of song settings,
+	//and then 6 bytes for each of the 16 tracks, all of which is read in the same way as the Organya constructor does
+	static Info readHeader(InputStream orgStream) throws IOException{
+		DataInputStream in=new DataInputStream(new BufferedInputStream(orgStream,114));
+		byte[] stuff=new byte[12];
+		in.readFully(stuff,0,6);
+		in.readFully(stuff);
+		int wait=(stuff[0]&255)+256*stuff[1];
+		int loopPoint=(stuff[4]&255)+256*stuff[5];
+		int songLen=(stuff[8]&255)+256*stuff[9];
+		int[] events=new int[16];
+		for(int j=0;j<16;j++){
+			in.readFully(stuff,0,6);
+			events[j]=(stuff[4]&255)+256*stuff[5];
+		}
+		return new Info(wait,loopPoint,songLen,events);
+	}
+	
+	//writes the index to a new file, which then replaces store, so that the index file is never left half written
+	private synchronized void save(){
+		File temp=new File(store.getPath()+".tmp");
+		try{
+			DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try{
+				Map<String,Entry> copy=new HashMap<String,Entry>(entries);
+				out.writeInt(version);
+				out.writeInt(copy.size());
+				for(Map.Entry<String,Entry> me:copy.entrySet()){
+					Entry e=me.getValue();
+					out.writeUTF(me.getKey());
+					out.writeLong(e.size);
+					out.writeLong(e.modified);
+					out.writeBoolean(e.info!=null);
+					if(e.info!=null){
+						out.writeInt(e.info.wait);
+						out.writeInt(e.info.loopPoint);
+						out.writeInt(e.info.songLen);
+						for(int j=0;j<16;j++) out.writeInt(e.info.events[j]);
+					}
+				}
+			}finally{out.close();}
+			Files.move(temp.toPath(),store.toPath(),StandardCopyOption.REPLACE_EXISTING);
+		}catch(IOException e){
+			//the index will be saved next time instead
+			temp.delete();
+		}
+	}
+}
\ No newline at end of file
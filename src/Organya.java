@@ -1,16 +1,38 @@
 import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
 class Organya extends Sound{
 	private byte[][] melody,drums;
-	private int clickLen,loopPoint,songLen,sample=0,click=0,percSampleRate;
+	private int clickLen,loopPoint,songLen,clickFrames=0,click=-1,percSampleRate;
 	private int[] instruments,tracksizes,periodsLeft=new int[16],pointqty=new int[8];
-	private int[][] data;
+	private int[][] runClicks,runValues;
+	private int[] loopRuns,runs=new int[16];
 	private boolean[] tactive=new boolean[16],pi=new boolean[16],makeEven=new boolean[8];
 	private double[] tfreq=new double[16],tpos=new double[16],freqoff=new double[16];
 	private double[] lvol=new double[16],rvol=new double[16];
+	private double[][] noteFreqs;
 	private double frameLen;
+	private boolean fixedPoint;
+	private long[] phase=new long[16],phaseInc=new long[16];
+	private long[][] noteIncs;
+	private int[] lgain=new int[16],rgain=new int[16],pointShift=new int[8];
+	
+	//the position a seek has been asked for, or -1 if there isn't one waiting
+	//seeks come from other threads during playback, so this is only ever taken with getAndSet, so that one arriving meanwhile isn't lost
+	private final AtomicLong seekFrame=new AtomicLong(-1);
+	
+	//the number of sample frames rendered since the beginning of the song, counting each time through the loop,
+	//which is -1 if that isn't known, because the engine was changed mid-song
+	//while audio is being copied from the cache, this is the position, and the rest of the playback state is out of date
+	private long played;
+	private LoopCache cache;
+	private LoopCache.Key cacheKey;
+	private LoopCache.Entry cached;
 	private static final int freqDivisor=256;
 	
 	private static int unsign(byte b){
@@ -22,104 +44,349 @@ class Organya extends Sound{
 		return Math.pow(10,vol-1);
 	}
 	
+	//everything computed at each click is looked up in these tables, so that no click costs more than another
+	//volumes holds the volume for each volume value, and leftPan and rightPan hold the gains for each pan value
+	//notePoints holds the number of points in the waveform for each melody note,
+	//and notePeriods holds the number of periods a pizzicato note lasts for
+	//noteFreqs holds the frequency of each note on each track, which depends on the track's "freq" value
+	private static final double[] volumes=new double[256],leftPan=new double[256],rightPan=new double[256];
+	private static final int[] notePoints=new int[255],notePeriods=new int[255];
+	
+	//the fixed point versions of the volume and pan tables, and of noteFreqs, used when fixedPoint is true
+	//these are computed with StrictMath, so that fixed point output is the same on every JVM
+	//volumes and gains have 16 fractional bits, and frequencies have 32
+	private static final int[] fixedVolumes=new int[256],fixedLeftPan=new int[256],fixedRightPan=new int[256];
+	
+	static{
+		for(int i=0;i<256;i++){
+			volumes[i]=255*interpretVol(i/255.0);
+			double tpan=(i-6)/6.0;
+			leftPan[i]=tpan>0? interpretVol(1-tpan):1;
+			rightPan[i]=tpan<0? interpretVol(1+tpan):1;
+			fixedVolumes[i]=(int)StrictMath.round(255*StrictMath.pow(10,i/255.0-1)*65536);
+			fixedLeftPan[i]=(int)StrictMath.round((tpan>0? StrictMath.pow(10,-tpan):1)*65536);
+			fixedRightPan[i]=(int)StrictMath.round((tpan<0? StrictMath.pow(10,tpan):1)*65536);
+		}
+		for(int note=0;note<255;note++){
+			notePoints[note]=1024;
+			notePeriods[note]=4;
+			for(int i=11;i<note;i+=12){notePoints[note]/=2;notePeriods[note]+=4;}
+		}
+	}
+	
+	private void buildNoteFreqs(){
+		noteFreqs=new double[16][255];
+		noteIncs=new long[16][255];
+		for(int j=0;j<16;j++){
+			for(int note=0;note<255;note++){
+				double foff=freqoff[j];
+				for(int k=24;k<=note;k+=12) if(k!=36) foff*=2;
+				noteFreqs[j][note]=frameLen*(j<8? 440.0*Math.pow(2.0,(note-45)/12.0)+foff:note*percSampleRate);
+				double freq=frameLen*(j<8? 440.0*StrictMath.pow(2.0,(note-45)/12.0)+foff:note*percSampleRate);
+				noteIncs[j][note]=StrictMath.round(freq*4294967296.0);
+			}
+		}
+	}
+	
+	//chooses between the two synthesis engines
+	//the default engine uses floating point, and is the one all other players of org files are compared with
+	//the fixed point engine uses 32.32 fixed point positions and integer volumes,
+	//which gives exactly the same output on every JVM, but differs slightly from the floating point engine
+	//it isn't reliably faster, since that depends on the song and the JVM, and CompareEngines measures both
 	//do not call this method during playback
-	//adding the "sychronized" keyword to both this method and the getSampleFrame method would allow it
-	//but that might also cause liveness issues
-	public void reset(){
-		sample=click=0;
-		periodsLeft=new int[16];
-		tactive=new boolean[16];
-		tfreq=new double[16];
-		tpos=new double[16];
-		lvol=new double[16];
-		rvol=new double[16];
-		pointqty=new int[8];
-		makeEven=new boolean[8];
-	}
-	
-	//this code loads the data from the org file
+	public void setFixedPoint(boolean fixedPoint){
+		if(fixedPoint==this.fixedPoint) return;
+		leaveCache();
+		if(seekFrame.get()>=0) seek();
+		this.fixedPoint=fixedPoint;
+		cacheKey=null;
+		
+		//carry over the position of each note, so the change can be made in the middle of a song
+		//the audio from then on is no longer the same as the new engine's if any note is playing,
+		//so the position is no longer counted as a position in the cache
+		for(int j=0;j<16;j++){
+			if(fixedPoint) phase[j]=(long)(tpos[j]*4294967296.0);
+			else tpos[j]=phase[j]/4294967296.0;
+			if(tactive[j]) played=-1;
+		}
+	}
+	
+	public boolean isFixedPoint(){return fixedPoint;}
+	
+	//sets the cache this Organya copies its audio from once the song has been rendered into it, or null not to use one
+	//the audio is exactly the same as it would be without the cache, except that after a seek,
+	//notes which should still be sounding from before the position seeked to are taken from the first time through the song
+	//do not call this method during playback
+	public void setCache(LoopCache cache){
+		leaveCache();
+		this.cache=cache;
+	}
+	
+	public LoopCache getCache(){return cache;}
+	
+	//stops copying audio from the cache, and brings the rest of the playback state up to date with a seek
+	private void leaveCache(){
+		if(cached==null) return;
+		cache.release(cached,this);
+		cached=null;
+		//unless a seek has been asked for meanwhile, which is left to happen instead
+		seekFrame.compareAndSet(-1,wrap(played));
+	}
+	
+	//the key of this song in a LoopCache, which is a hash of the song data along with the settings that affect the audio
+	private LoopCache.Key cacheKey(){
+		if(cacheKey!=null) return cacheKey;
+		try{
+			MessageDigest md=MessageDigest.getInstance("SHA-256");
+			DataOutputStream out=new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(),md));
+			out.writeInt(clickLen);
+			out.writeInt(loopPoint);
+			out.writeInt(songLen);
+			for(int j=0;j<16;j++){
+				out.writeInt(instruments[j]);
+				out.writeDouble(freqoff[j]);
+				out.writeBoolean(pi[j]);
+				out.writeInt(runClicks[j].length);
+				for(int r=0;r<runClicks[j].length;r++){
+					out.writeInt(runClicks[j][r]);
+					out.writeInt(runValues[j][r]);
+				}
+			}
+			out.close();
+			return cacheKey=new LoopCache.Key(md.digest(),getSampleRate(),fixedPoint,melody);
+		}catch(NoSuchAlgorithmException e){throw new RuntimeException(e);}
+		catch(IOException e){throw new RuntimeException(e);}
+	}
+	
+	//moves back to the beginning of the song
+	//like the seek methods, this may be called during playback
+	public void reset(){seekToFrame(0);}
+	
+	//moves to the given position in the song
+	//the seek does not happen immediately, but just before the next sample frame is rendered,
+	//on whichever thread renders it, so these methods may safely be called during playback
+	//the notes which would be playing at that position are reconstructed from the song data,
+	//as they would be on the first time through the song
+	//positions past the end of the song are wrapped around into the loop
+	public void seekToFrame(long frame){
+		if(frame<0) throw new IllegalArgumentException("Negative position: "+frame);
+		seekFrame.set(wrap(frame));
+	}
+	
+	//wraps a position past the end of the song around into the loop
+	private long wrap(long frame){
+		long end=(long)songLen*clickLen,loop=(long)(songLen-loopPoint)*clickLen;
+		if(frame>=end) frame=end-loop+(frame-end)%loop;
+		return frame;
+	}
+	
+	public void seekToClick(int click){seekToFrame((long)click*clickLen);}
+	
+	public void seekToMillis(long millis){seekToFrame((long)(millis*(double)getSampleRate()/1000));}
+	
+	//the position in the song of the next sample frame to be rendered
+	//during playback, this is ahead of the sample frame being heard by up to the length of the playback buffer
+	public long getPositionFrames(){
+		long frame=seekFrame.get();
+		if(frame>=0) return frame;
+		if(cached!=null) return wrap(played);
+		int c=click;
+		return c<0? 0:(long)c*clickLen+clickLen-clickFrames;
+	}
+	
+	public long getPositionMillis(){return (long)(getPositionFrames()*1000/(double)getSampleRate());}
+	
+	//the length of the song, including the intro and one time through the loop
+	public long getDurationMillis(){return (long)((long)songLen*clickLen*1000/(double)getSampleRate());}
+	
+	//performs a seek requested by seekToFrame
+	//this costs about as much as rendering one click, no matter where in the song the position is
+	private void seek(){
+		long frame=seekFrame.getAndSet(-1);
+		if(frame<0) return;
+		int target=(int)(frame/clickLen);
+		
+		for(int j=0;j<16;j++){
+			tactive[j]=false;
+			tpos[j]=0;
+			
+			//find the most recent click which changed the state of this track
+			//for the melody tracks, this is a note or a release, and for the percussion tracks, only a note
+			runs[j]=target>0? runAt(j,target-1):-1;
+			int r=runs[j],note=255;
+			for(;r>=0;r--){
+				note=runValues[j][r]/65536;
+				if(note<255 || (note==256 && j<8)) break;
+			}
+			if(r<0 || note>=255) continue;
+			int k=Math.min(target,r+1<runClicks[j].length? runClicks[j][r+1]:songLen)-1;
+			
+			//retrigger the note, then move it forward to the target position
+			trigger(j,note);
+			long elapsed=(long)(target-k)*clickLen;
+			double pos=tfreq[j]*elapsed;
+			if(j<8){
+				long periods=(long)pos;
+				tpos[j]=pos-periods;
+				phase[j]=(phaseInc[j]*elapsed)&0xFFFFFFFFL;
+				if(pi[j] && (periodsLeft[j]-=periods)<=0){periodsLeft[j]=0;tactive[j]=false;}
+			}else{
+				tpos[j]=pos;
+				if(pos>=drums[instruments[j]].length) tactive[j]=false;
+				else phase[j]=phaseInc[j]*elapsed;
+			}
+		}
+		
+		click=target-1;
+		clickFrames=0;
+		played=(long)target*clickLen;
+		skip(frame%clickLen);
+	}
+	
+	//the index of the run of track j which contains click c
+	private int runAt(int j,int c){
+		int r=Arrays.binarySearch(runClicks[j],c);
+		return r>=0? r:-r-2;
+	}
+	
+	//the length of a click, in sample frames
+	public int getClickLen(){return clickLen;}
+	
+	//the click that playback loops back to when it reaches the end of the song
+	public int getLoopPoint(){return loopPoint;}
+	
+	//the length of the song, in clicks
+	public int getSongLen(){return songLen;}
+	
+	//this code loads the data from the org file, and the sample data from the resource file
 	Organya(InputStream orgStream,InputStream resStream,float sampleRate,Monitor monitor) throws IOException{
+		this(orgStream,new SampleBank(resStream),sampleRate,monitor);
+	}
+	
+	//creates an Organya which plays the same song as org, from the beginning, using the same engine
+	//the song and sample data are shared with org rather than copied
+	Organya(Organya org,Monitor monitor){
+		super(monitor);
+		setSampleRate(org.getSampleRate());
+		frameLen=org.frameLen;
+		melody=org.melody;
+		drums=org.drums;
+		percSampleRate=org.percSampleRate;
+		clickLen=org.clickLen;
+		loopPoint=org.loopPoint;
+		songLen=org.songLen;
+		instruments=org.instruments;
+		tracksizes=org.tracksizes;
+		runClicks=org.runClicks;
+		runValues=org.runValues;
+		loopRuns=org.loopRuns;
+		pi=org.pi;
+		freqoff=org.freqoff;
+		noteFreqs=org.noteFreqs;
+		noteIncs=org.noteIncs;
+		fixedPoint=org.fixedPoint;
+	}
+	
+	//this code loads the data from the org file, using sample data which has already been loaded
+	//any number of Organya objects may share the same SampleBank
+	Organya(InputStream orgStream,SampleBank bank,float sampleRate,Monitor monitor) throws IOException{
 		super(monitor);
 		setSampleRate(sampleRate);
 		frameLen=1.0/sampleRate;
+		melody=bank.melody;
+		drums=bank.drums;
+		percSampleRate=bank.percSampleRate;
 		
-		//read sample data in from the resource file
-		int mqty=resStream.read();
-		int mlen=0;
-		for(int i=0;i<3;i++){mlen*=256;mlen+=resStream.read();}
-		melody=new byte[mqty][mlen];
-		for(byte[] b:melody) resStream.read(b);
-		drums=new byte[resStream.read()][];
-		percSampleRate=256*resStream.read();
-		percSampleRate+=resStream.read();
-		for(int i=0;i<drums.length;i++){
-			mlen=0;
-			for(int j=0;j<3;j++){mlen*=256;mlen+=resStream.read();}
-			drums[i]=new byte[mlen];
-			resStream.read(drums[i]);
-		}
-		resStream.close();
-		
-		//ignore the first 6 bytes of the org file
-		orgStream.skip(6);
+		//a truncated org file causes an EOFException, rather than being read as though it were padded with -1
+		DataInputStream in=new DataInputStream(orgStream);
 		
 		//an array to temporarily store small chunks of data from the org file
 		byte[] stuff=new byte[12];
 		
+		//ignore the first 6 bytes of the org file
+		in.readFully(stuff,0,6);
+		
 		//read 12 bytes of data into the array
-		orgStream.read(stuff);
+		in.readFully(stuff);
 		
 		//get the wait value (clickLen), start point (loopPoint), and end point (songLen)
 		clickLen=(int)(sampleRate*(unsign(stuff[0])+256*stuff[1])/1000.0+.5);
 		loopPoint=unsign(stuff[4])+256*stuff[5];
 		songLen=unsign(stuff[8])+256*stuff[9];
 		
+		//with clicks no sample frames long, rendering would never get past the first one
+		if(clickLen<=0) throw new IOException("Invalid wait value: "+(unsign(stuff[0])+256*stuff[1]));
+		
+		//the loop has to have at least one click in it, or there is nowhere for seeking past the end of the song to wrap to
+		if(loopPoint<0 || loopPoint>=songLen) throw new IOException("Invalid loop: from click "+loopPoint+" to click "+songLen);
+		
 		//read track data
 		instruments=new int[16];
 		tracksizes=new int[16];
 		for(int i=0;i<16;i++){
 			//read and process the "freq" value
-			int freq=orgStream.read();
-			freq+=orgStream.read()*256;
+			int freq=in.readUnsignedByte();
+			freq+=in.readUnsignedByte()*256;
 			freqoff[i]=(freq-1000.0)/freqDivisor;
 			
-			instruments[i]=orgStream.read();
-			orgStream.read(stuff,0,3);
+			instruments[i]=in.readUnsignedByte();
+			in.readFully(stuff,0,3);
 			tracksizes[i]=unsign(stuff[1])+256*stuff[2];
 			pi[i]=stuff[0]>0;
+			
+			//a track can't have fewer than no events, and its instrument has to be one the sample bank has
+			if(tracksizes[i]<0) throw new IOException("Invalid number of events on track "+i+": "+tracksizes[i]);
+			int instrumentCount=i<8? melody.length:drums.length;
+			if(instruments[i]>=instrumentCount) throw new IOException("Invalid instrument on track "+i+": "+instruments[i]+", of "+instrumentCount);
 		}
+		buildNoteFreqs();
 		
 		//read event data
-		data=new int[16][songLen];
+		//the state of each track is stored as a list of runs of clicks over which it does not change,
+		//each of which starts at runClicks[i][r], and has the note, volume, and pan stored in runValues[i][r]
+		//this way, the amount of memory used depends on the number of events rather than the length of the song
+		runClicks=new int[16][];
+		runValues=new int[16][];
+		loopRuns=new int[16];
 		
 		//for each track
 		for(int i=0;i<16;i++){
 			int volume=0,hold=0,pan=0;
 			
 			//tracksizes[i] is the number of events (resources) for track i
+			int[] times=new int[tracksizes[i]];
+			int qty=0;
 			for(int j=0;j<tracksizes[i];j++){
 				//read the time that the event occurs
-				orgStream.read(stuff,0,4);
+				in.readFully(stuff,0,4);
 				int time=unsign(stuff[0])+256*stuff[1];
-				
-				//put a "marker" in the data array indicating that there is an event there
-				if(time<songLen) data[i][time]=1;
+				if(time>=0 && time<songLen) times[qty++]=time;
 			}
 			
+			//the resources are used in the order of the times they occur, not the order they are stored in,
+			//and if there are several at the same time, only the first is used
+			Arrays.sort(times,0,qty);
+			
 			//read all resource data for this track into the resdata array
 			//4 bytes per resource: note, duration, volume, pan
 			byte[] resdata=new byte[tracksizes[i]*4];
-			orgStream.read(resdata);
+			in.readFully(resdata);
 			
-			//index keeps track of which resource is next to be processed
-			int index=0;
+			//index keeps track of which resource is next to be processed, and next of which time is next
+			int index=0,next=0;
+			
+			//each event starts at most three runs: the note itself, the note being held, and its release
+			int[] clicks=new int[3*qty+1],values=new int[3*qty+1];
+			int runqty=0;
 			
 			//for each "click" in the song
 			for(int j=0;j<songLen;j++){
 				int note=255;
 				
 				//if this track has a resource at this position in the song
-				if(data[i][j]==1){
+				if(next<qty && times[next]==j){
+					while(next<qty && times[next]==j) next++;
+					
 					//store the 4 bytes for this resource into the stuff array 
 					for(int k=0;k<4;k++) stuff[k]=resdata[index+tracksizes[i]*k];
 					
@@ -144,97 +411,385 @@ class Organya extends Sound{
 				if(note==255 && hold>0){hold--;}
 				if(hold==0) note=256;
 				
-				//store the note, volume, and pan into the data array
-				data[i][j]=65536*note+256*volume+pan;
+				//start a new run if the note, volume, or pan has changed
+				//a run of several notes in a row is fine, since a note is re-triggered at each click it appears in
+				int value=65536*note+256*volume+pan;
+				if(runqty==0 || values[runqty-1]!=value){
+					clicks[runqty]=j;
+					values[runqty++]=value;
+				}
 			}
+			runClicks[i]=Arrays.copyOf(clicks,runqty);
+			runValues[i]=Arrays.copyOf(values,runqty);
+			if(loopPoint<songLen) loopRuns[i]=runAt(i,loopPoint);
 		}
 		orgStream.close();
 	}
 	
-	public SampleFrame getSampleFrame(){
-		//the variable sample keeps track of which sample is currently being played
-		//increment it and check if it was a multiple of clickLen before being incremented
-		//if it is, move to the next click and process any data for that click
-		if((sample++)%clickLen==0){
-			//for each track
-			for(int j=0;j<16;j++){
-				//get the note, volume, and pan values for this track at this click
-				int tvolume=(data[j][click]%65536)/256;
-				int note=data[j][click]/65536;
-				double tpan=(data[j][click]%256-6)/6.0;
-				lvol[j]=rvol[j]=255*interpretVol(tvolume/255.0);
-				if(tpan<0) rvol[j]*=interpretVol(1+tpan);
-				if(tpan>0) lvol[j]*=interpretVol(1-tpan);
-				
-				if(note==256 && j<8) tactive[j]=false;
-				if(note<255){
-					if(pi[j]){
-						periodsLeft[j]=4;
-						for(int i=11;i<note;i+=12) periodsLeft[j]+=4;
-					}
-					tactive[j]=true;
-					tpos[j]=0.0;
-					double foff=freqoff[j];
-					for(int k=24;k<=note;k+=12) if(k!=36) foff*=2;
-					tfreq[j]=frameLen*(j<8? 440.0*Math.pow(2.0,(note-45)/12.0)+foff:note*percSampleRate);
-					if(j<8){
-						pointqty[j]=1024;
-						for(int i=11;i<note;i+=12) pointqty[j]/=2;
-						makeEven[j]=pointqty[j]<=256;
-					}
-				}
-			}
+	//moves to the next click, and processes the data for it
+	private void nextClick(){
+		//increment click
+		//check to see if we've reached the end of the song, and loop back if so
+		if(++click==songLen){
+			click=loopPoint;
+			System.arraycopy(loopRuns,0,runs,0,16);
+		}
+		clickFrames=clickLen;
+		
+		//for each track
+		for(int j=0;j<16;j++){
+			//move to the next run if it starts at this click
+			int r=runs[j];
+			if(r+1<runClicks[j].length && runClicks[j][r+1]==click) runs[j]=++r;
+			
+			//get the note, volume, and pan values for this track at this click
+			int value=runValues[j][r];
+			int tvolume=(value%65536)/256;
+			int note=value/65536;
+			int tpan=value%256;
+			lvol[j]=volumes[tvolume]*leftPan[tpan];
+			rvol[j]=volumes[tvolume]*rightPan[tpan];
+			lgain[j]=(int)(((long)fixedVolumes[tvolume]*fixedLeftPan[tpan])>>16);
+			rgain[j]=(int)(((long)fixedVolumes[tvolume]*fixedRightPan[tpan])>>16);
 			
-			//increment click
-			//check to see if we've reached the end of the song, and loop back if so
-			if(++click==songLen){
-				click=loopPoint;
-				sample=click*clickLen+1;
+			if(note==256 && j<8) tactive[j]=false;
+			if(note<255) trigger(j,note);
+		}
+	}
+	
+	//starts playing the given note on track j, from the beginning
+	private void trigger(int j,int note){
+		if(pi[j]) periodsLeft[j]=notePeriods[note];
+		tactive[j]=true;
+		tpos[j]=0.0;
+		tfreq[j]=noteFreqs[j][note];
+		phase[j]=0;
+		phaseInc[j]=noteIncs[j][note];
+		if(j<8){
+			pointqty[j]=notePoints[note];
+			pointShift[j]=Integer.numberOfTrailingZeros(pointqty[j]);
+			makeEven[j]=pointqty[j]<=256;
+		}
+	}
+	
+	//moves track j, which must be active, forward by one sample frame
+	private void advance(int j){
+		tpos[j]+=tfreq[j];
+		while(tpos[j]>=1.0 && j<8 && tactive[j]){
+			tpos[j]--;
+			if(pi[j]) if(--periodsLeft[j]==0) tactive[j]=false;
+		}
+		if(j>=8) if(tpos[j]>=drums[instruments[j]].length) tactive[j]=false;
+	}
+	
+	//the fixed point version of advance
+	private void advanceFixed(int j){
+		long p=phase[j]+phaseInc[j];
+		if(j<8){
+			//the integer part of the position is the number of periods the note has just finished
+			int periods=(int)(p>>>32);
+			if(periods>0){
+				p&=0xFFFFFFFFL;
+				if(pi[j] && (periodsLeft[j]-=periods)<=0) tactive[j]=false;
 			}
+		}else if((p>>>32)>=drums[instruments[j]].length) tactive[j]=false;
+		phase[j]=p;
+	}
+	
+	//rather than checking for a new click and for each track being active at every sample frame,
+	//render works in runs of sample frames between clicks, and only mixes the tracks which are active
+	//each track is mixed for the whole run at once, stopping early if the note ends,
+	//and the tracks are added up in the same order as before, so the output is unchanged
+	//if a cache is set, and the song has been rendered into it, the audio is copied from there instead
+	public int render(int[] buffer,int offset,int frames){
+		if(cache!=null && cached==null && (played>=0 || seekFrame.get()>=0)) cached=cache.lookup(cacheKey(),this);
+		if(cached!=null){
+			long frame=seekFrame.getAndSet(-1);
+			if(frame>=0) played=frame;
+			played=cached.copy(played,buffer,offset,frames);
+			return frames;
 		}
 		
-		double lsamp=0.0,rsamp=0.0;
-		for(int j=0;j<16;j++){
-			if(tactive[j]){
-				int ins=instruments[j];
-				double samp1,samp2,pos=tpos[j];
-				if(j<8){
-					int size=pointqty[j];
-					pos*=size;
-					int pos1=(int)pos;
-					pos-=pos1;
-					int pos2=pos1+1;
-					if(pos2==size) pos2=0;
-					if(makeEven[j]){pos1-=pos1%2;pos2-=pos2%2;}
-					samp1=melody[ins][(pos1*256)/size];
-					samp2=melody[ins][(pos2*256)/size];
-				}else{
-					int pos1=(int)pos;
-					pos-=pos1;
-					byte[] drum=drums[ins];
-					samp1=drum[pos1++];
-					samp2=pos1<drum.length? drum[pos1]:0;
+		if(seekFrame.get()>=0) seek();
+		for(int done=0;done<frames;){
+			if(clickFrames==0) nextClick();
+			int run=Math.min(Math.min(frames-done,clickFrames),mixLen);
+			clickFrames-=run;
+			done+=run;
+			
+			//a bitmask of the active tracks
+			int active=0;
+			for(int j=0;j<16;j++) if(tactive[j]) active|=1<<j;
+			if(active==0){
+				Arrays.fill(buffer,offset,offset+2*run,0);
+				offset+=2*run;
+				continue;
+			}
+			
+			if(fixedPoint){
+				Arrays.fill(lfixed,0,run,0);
+				Arrays.fill(rfixed,0,run,0);
+				for(;active!=0;active&=active-1) mixFixed(Integer.numberOfTrailingZeros(active),run);
+				for(int f=0;f<run;f++){
+					//round towards zero, as the floating point engine does
+					long lsamp=lfixed[f],rsamp=rfixed[f];
+					if(lsamp<0) lsamp+=(1L<<32)-1;
+					if(rsamp<0) rsamp+=(1L<<32)-1;
+					buffer[offset++]=(int)(lsamp>>32);
+					buffer[offset++]=(int)(rsamp>>32);
 				}
+			}else{
+				Arrays.fill(lmix,0,run,0.0);
+				Arrays.fill(rmix,0,run,0.0);
+				for(;active!=0;active&=active-1) mix(Integer.numberOfTrailingZeros(active),run);
+				for(int f=0;f<run;f++){
+					buffer[offset++]=(int)lmix[f];
+					buffer[offset++]=(int)rmix[f];
+				}
+			}
+		}
+		if(played>=0) played+=frames;
+		return frames;
+	}
+	
+	//the longest run of sample frames mixed at once, and the arrays the tracks are mixed into
+	private static final int mixLen=1024;
+	private double[] lmix=new double[mixLen],rmix=new double[mixLen];
+	private long[] lfixed=new long[mixLen],rfixed=new long[mixLen];
+	
+	//mixes frames sample frames of track j, which must be active, into lmix and rmix
+	private void mix(int j,int frames){
+		double pos0=tpos[j],freq=tfreq[j],lv=lvol[j],rv=rvol[j];
+		if(j<8){
+			byte[] wave=melody[instruments[j]];
+			int size=pointqty[j];
+			boolean even=makeEven[j];
+			for(int f=0;f<frames;f++){
+				double pos=pos0*size;
+				int pos1=(int)pos;
+				pos-=pos1;
+				int pos2=pos1+1;
+				if(pos2==size) pos2=0;
+				if(even){pos1-=pos1%2;pos2-=pos2%2;}
+				double samp1=wave[(pos1*256)/size];
+				double samp2=wave[(pos2*256)/size];
 				
 				//do interpolation
 				double samp=samp1+pos*(samp2-samp1);
 				
 				//multiply the sample frame by the left and right volume, and add it to the output
-				lsamp+=lvol[j]*samp;
-				rsamp+=rvol[j]*samp;
+				lmix[f]+=lv*samp;
+				rmix[f]+=rv*samp;
 				
-				tpos[j]+=tfreq[j];
-				while(tpos[j]>=1.0 && j<8 && tactive[j]){
-					tpos[j]--;
-					if(pi[j]) if(--periodsLeft[j]==0) tactive[j]=false;
+				pos0+=freq;
+				while(pos0>=1.0){
+					pos0--;
+					if(pi[j]) if(--periodsLeft[j]==0){tactive[j]=false;break;}
 				}
-				if(j>=8) if(tpos[j]>=drums[ins].length) tactive[j]=false;
+				if(!tactive[j]) break;
 			}
+		}else{
+			byte[] drum=drums[instruments[j]];
+			for(int f=0;f<frames;f++){
+				int pos1=(int)pos0;
+				double pos=pos0-pos1;
+				double samp1=drum[pos1++];
+				double samp2=pos1<drum.length? drum[pos1]:0;
+				double samp=samp1+pos*(samp2-samp1);
+				lmix[f]+=lv*samp;
+				rmix[f]+=rv*samp;
+				
+				pos0+=freq;
+				if(pos0>=drum.length){tactive[j]=false;break;}
+			}
+		}
+		tpos[j]=pos0;
+	}
+	
+	//the fixed point version of mix, which mixes into lfixed and rfixed
+	//the interpolation fraction has 16 bits, and so do the gains, since the product of the volume and pan is shifted down to 16 fractional bits,
+	//so the sum of all tracks has 32 fractional bits, and render shifts it down by 32 to get whole sample values
+	private void mixFixed(int j,int frames){
+		long p=phase[j],inc=phaseInc[j];
+		long lg=lgain[j],rg=rgain[j];
+		if(j<8){
+			//the number of points is always a power of two, so shifts replace the divisions
+			byte[] wave=melody[instruments[j]];
+			int shift=pointShift[j];
+			boolean even=makeEven[j];
+			for(int f=0;f<frames;f++){
+				long pos=p<<shift;
+				int pos1=(int)(pos>>>32);
+				int frac=(int)(pos>>>16)&0xFFFF;
+				int pos2=pos1+1;
+				if(pos2==1<<shift) pos2=0;
+				if(even){pos1&=~1;pos2&=~1;}
+				int samp1=wave[(pos1<<8)>>shift];
+				int samp2=wave[(pos2<<8)>>shift];
+				long samp=((long)samp1<<16)+(long)frac*(samp2-samp1);
+				lfixed[f]+=samp*lg;
+				rfixed[f]+=samp*rg;
+				
+				//the integer part of the position is the number of periods the note has just finished
+				p+=inc;
+				int periods=(int)(p>>>32);
+				if(periods>0){
+					p&=0xFFFFFFFFL;
+					if(pi[j] && (periodsLeft[j]-=periods)<=0){tactive[j]=false;break;}
+				}
+			}
+		}else{
+			byte[] drum=drums[instruments[j]];
+			for(int f=0;f<frames;f++){
+				int pos1=(int)(p>>>32);
+				int frac=(int)(p>>>16)&0xFFFF;
+				int samp1=drum[pos1++];
+				int samp2=pos1<drum.length? drum[pos1]:0;
+				long samp=((long)samp1<<16)+(long)frac*(samp2-samp1);
+				lfixed[f]+=samp*lg;
+				rfixed[f]+=samp*rg;
+				
+				p+=inc;
+				if((p>>>32)>=drum.length){tactive[j]=false;break;}
+			}
+		}
+		phase[j]=p;
+	}
+	
+	//moves forward by frames sample frames, leaving this Organya in exactly the state render would have,
+	//but without mixing any audio, which makes it several times faster
+	public void skip(long frames){
+		if(cached!=null){
+			long frame=seekFrame.getAndSet(-1);
+			if(frame>=0) played=frame;
+			played+=frames;
+			return;
+		}
+		if(seekFrame.get()>=0) seek();
+		if(played>=0) played+=frames;
+		while(frames>0){
+			if(clickFrames==0) nextClick();
+			
+			//the tracks are independent until the next click, so each one can be moved forward on its own
+			int run=(int)Math.min(frames,clickFrames);
+			clickFrames-=run;
+			frames-=run;
+			if(fixedPoint) for(int j=0;j<16;j++) for(int f=0;f<run && tactive[j];f++) advanceFixed(j);
+			else for(int j=0;j<16;j++) for(int f=0;f<run && tactive[j];f++) advance(j);
+		}
+	}
+	
+	//renders the same sample frames as render would, but splits them into segments rendered in parallel by pool
+	//the state at the start of each segment is found by skipping, then each segment is rendered
+	//by a separate Organya restored from a snapshot of that state
+	//the result is identical to calling render, and this Organya is left in the same state
+	public int renderParallel(int[] buffer,int offset,int frames,ForkJoinPool pool){
+		leaveCache();
+		if(seekFrame.get()>=0) seek();
+		int segments=Math.max(1,Math.min(pool.getParallelism()*4,frames/minSegmentLen));
+		List<Callable<Object>> tasks=new ArrayList<Callable<Object>>();
+		for(int i=0;i<segments;i++){
+			final int start=(int)((long)frames*i/segments),end=(int)((long)frames*(i+1)/segments);
+			final int segOffset=offset+2*start;
+			final Snapshot state=snapshot();
+			tasks.add(new Callable<Object>(){
+				@Override
+				public Object call(){
+					Organya org=new Organya(Organya.this,null);
+					org.restore(state);
+					return org.render(buffer,segOffset,end-start);
+				}
+			});
+			skip(end-start);
+		}
+		for(Future<Object> f:pool.invokeAll(tasks)){
+			try{f.get();}
+			catch(InterruptedException e){Thread.currentThread().interrupt();}
+			catch(ExecutionException e){throw new RuntimeException(e.getCause());}
+		}
+		return frames;
+	}
+	
+	//the shortest segment renderParallel will split a render into, in sample frames
+	private static final int minSegmentLen=8192;
+	
+	//returns a copy of the current playback state
+	//do not call this method during playback
+	public Snapshot snapshot(){
+		leaveCache();
+		if(seekFrame.get()>=0) seek();
+		return new Snapshot(this);
+	}
+	
+	//returns to a playback state previously returned by snapshot, cancelling any seek which has not yet happened
+	//the snapshot may come from any Organya playing the same song at the same sample rate, using the same engine
+	//do not call this method during playback
+	public void restore(Snapshot s){
+		seekFrame.set(-1);
+		if(cached!=null){
+			cache.release(cached,this);
+			cached=null;
+		}
+		played=s.played;
+		clickFrames=s.clickFrames;
+		click=s.click;
+		System.arraycopy(s.periodsLeft,0,periodsLeft,0,16);
+		System.arraycopy(s.pointqty,0,pointqty,0,8);
+		System.arraycopy(s.tactive,0,tactive,0,16);
+		System.arraycopy(s.makeEven,0,makeEven,0,8);
+		System.arraycopy(s.tfreq,0,tfreq,0,16);
+		System.arraycopy(s.tpos,0,tpos,0,16);
+		System.arraycopy(s.lvol,0,lvol,0,16);
+		System.arraycopy(s.rvol,0,rvol,0,16);
+		System.arraycopy(s.phase,0,phase,0,16);
+		System.arraycopy(s.phaseInc,0,phaseInc,0,16);
+		System.arraycopy(s.lgain,0,lgain,0,16);
+		System.arraycopy(s.rgain,0,rgain,0,16);
+		System.arraycopy(s.pointShift,0,pointShift,0,8);
+		System.arraycopy(s.runs,0,runs,0,16);
+	}
+	
+	//the playback state of an Organya at a particular sample frame
+	//a snapshot is never modified, so it may be restored any number of times, from any thread
+	static class Snapshot{
+		private final int clickFrames,click;
+		private final long played;
+		private final int[] periodsLeft,pointqty,lgain,rgain,pointShift,runs;
+		private final boolean[] tactive,makeEven;
+		private final double[] tfreq,tpos,lvol,rvol;
+		private final long[] phase,phaseInc;
+		
+		private Snapshot(Organya org){
+			clickFrames=org.clickFrames;
+			click=org.click;
+			played=org.played;
+			periodsLeft=org.periodsLeft.clone();
+			pointqty=org.pointqty.clone();
+			tactive=org.tactive.clone();
+			makeEven=org.makeEven.clone();
+			tfreq=org.tfreq.clone();
+			tpos=org.tpos.clone();
+			lvol=org.lvol.clone();
+			rvol=org.rvol.clone();
+			phase=org.phase.clone();
+			phaseInc=org.phaseInc.clone();
+			lgain=org.lgain.clone();
+			rgain=org.rgain.clone();
+			pointShift=org.pointShift.clone();
+			runs=org.runs.clone();
 		}
 		
-		SampleFrame s=new SampleFrame();
-		s.left=(int)lsamp;
-		s.right=(int)rsamp;
-		return s;
+		//returns whether this snapshot and s would render the same audio from here on
+		//the state of tracks which aren't playing is ignored, since it is all reset when they next play a note
+		boolean sameAs(Snapshot s){
+			if(clickFrames!=s.clickFrames || click!=s.click || !Arrays.equals(runs,s.runs) || !Arrays.equals(tactive,s.tactive)) return false;
+			for(int j=0;j<16;j++){
+				if(!tactive[j]) continue;
+				if(tpos[j]!=s.tpos[j] || tfreq[j]!=s.tfreq[j] || phase[j]!=s.phase[j] || phaseInc[j]!=s.phaseInc[j]) return false;
+				if(periodsLeft[j]!=s.periodsLeft[j] || lvol[j]!=s.lvol[j] || rvol[j]!=s.rvol[j] || lgain[j]!=s.lgain[j] || rgain[j]!=s.rgain[j]) return false;
+				if(j<8 && (pointqty[j]!=s.pointqty[j] || pointShift[j]!=s.pointShift[j] || makeEven[j]!=s.makeEven[j])) return false;
+			}
+			return true;
+		}
 	}
-}
+}
\ No newline at end of file
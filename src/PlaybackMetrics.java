@@ -0,0 +1,232 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+
+
+//measurements of how playback of a Sound is going, which are always being taken, see Sound.getMetrics
+//the playback thread records a handful of numbers once per chunk, with no locking and no allocation,
+//so that the measurements can be left on all the time and looked at when playback stutters
+//they can be read with snapshot, or over JMX, where each Sound is registered as Sound:type=Playback,name=<class>-<number>
+//while it is playing
+class PlaybackMetrics implements PlaybackMetricsMXBean{
+	private final ObjectName name;
+	private final Histogram renderTime=new Histogram(),syncLag=new Histogram();
+	private final AtomicLong chunks=new AtomicLong(),frames=new AtomicLong(),renderNanos=new AtomicLong();
+	private final AtomicLong underruns=new AtomicLong(),clipped=new AtomicLong();
+	private final AtomicLong fill=new AtomicLong(),minFill=new AtomicLong(Long.MAX_VALUE);
+	private volatile float sampleRate;
+	private volatile int bufferLen;
+	
+	//the playback thread, or -1 when there isn't one, the bytes it had allocated and the time when it started or reset was called,
+	//and the rate at which it allocated, once it has stopped
+	private volatile long threadId=-1,startBytes,startTime;
+	private volatile double stoppedRate=-1;
+	
+	private static final AtomicInteger count=new AtomicInteger();
+	
+	//sounds are registered and unregistered on a single daemon thread, in the order they start and stop playing,
+	//so that the playback thread never waits for the MBean server, which is slow to start
+	private static final Executor registrar=Threads.daemonExecutor("Sound metrics registration");
+	
+	PlaybackMetrics(Sound sound){
+		String n=sound.getClass().getSimpleName();
+		ObjectName name=null;
+		try{name=new ObjectName("Sound:type=Playback,name="+ObjectName.quote((n.isEmpty()? "Sound":n)+"-"+count.incrementAndGet()));}
+		catch(MalformedObjectNameException e){throw new AssertionError(e);}
+		this.name=name;
+	}
+	
+	//the measurements at the moment this is called
+	//since they are being updated while they are read, they may be very slightly out of step with each other
+	static class Snapshot{
+		public final long chunks,frames,underruns,clippedSamples;
+		
+		//times are in microseconds
+		public final double renderTimeP50,renderTimeP90,renderTimeP99,renderTimeP999,renderTimeMax;
+		public final double syncLagP50,syncLagP99,syncLagMax;
+		
+		//as in PlaybackMetricsMXBean
+		public final double headroom,bufferFill,minBufferFill,allocationBytesPerSecond;
+		
+		private Snapshot(PlaybackMetrics m){
+			chunks=m.chunks.get();
+			frames=m.frames.get();
+			underruns=m.underruns.get();
+			clippedSamples=m.clipped.get();
+			renderTimeP50=m.renderTime.percentile(.5)/1000.0;
+			renderTimeP90=m.renderTime.percentile(.9)/1000.0;
+			renderTimeP99=m.renderTime.percentile(.99)/1000.0;
+			renderTimeP999=m.renderTime.percentile(.999)/1000.0;
+			renderTimeMax=m.renderTime.max()/1000.0;
+			syncLagP50=m.syncLag.percentile(.5)/1000.0;
+			syncLagP99=m.syncLag.percentile(.99)/1000.0;
+			syncLagMax=m.syncLag.max()/1000.0;
+			long nanos=m.renderNanos.get();
+			headroom=nanos==0? 0:frames/(double)m.sampleRate*1e9/nanos;
+			int len=m.bufferLen;
+			long min=m.minFill.get();
+			bufferFill=len==0? 0:m.fill.get()/(double)len;
+			minBufferFill=len==0 || min==Long.MAX_VALUE? 0:min/(double)len;
+			allocationBytesPerSecond=m.allocationRate();
+		}
+		
+		public String toString(){
+			return String.format("%d chunks, render %.0f/%.0f/%.0f/%.0f us (p50/p99/p99.9/max), headroom %.1fx, %d underruns, "
+				+"buffer %.0f%% (min %.0f%%), sync lag %.0f/%.0f us (p99/max), %d clipped, %.0f B/s allocated",
+				chunks,renderTimeP50,renderTimeP99,renderTimeP999,renderTimeMax,headroom,underruns,
+				100*bufferFill,100*minBufferFill,syncLagP99,syncLagMax,clippedSamples,allocationBytesPerSecond);
+		}
+	}
+	
+	public Snapshot snapshot(){return new Snapshot(this);}
+	
+	public void reset(){
+		renderTime.reset();
+		syncLag.reset();
+		chunks.set(0);
+		frames.set(0);
+		renderNanos.set(0);
+		underruns.set(0);
+		clipped.set(0);
+		minFill.set(Long.MAX_VALUE);
+		long id=threadId;
+		if(id>=0){
+			startBytes=allocatedBytes(id);
+			startTime=System.nanoTime();
+		}
+		stoppedRate=-1;
+	}
+	
+	//called by the playback thread when it starts, before anything else
+	//the management beans are slow to start too, so the playback thread starts being measured a moment later
+	void started(float sampleRate,int bufferLen){
+		this.sampleRate=sampleRate;
+		this.bufferLen=bufferLen;
+		final long id=Thread.currentThread().getId();
+		registrar.execute(new Runnable(){
+			public void run(){
+				startBytes=allocatedBytes(id);
+				startTime=System.nanoTime();
+				threadId=id;
+				try{ManagementFactory.getPlatformMBeanServer().registerMBean(PlaybackMetrics.this,name);}
+				catch(JMException e){
+					//another Sound can't have the same name, and the metrics are still available from snapshot
+				}
+			}
+		});
+	}
+	
+	//called by the playback thread when it stops
+	void stopped(){
+		stoppedRate=allocationRate();
+		registrar.execute(new Runnable(){
+			public void run(){
+				threadId=-1;
+				try{ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);}
+				catch(JMException e){}
+			}
+		});
+	}
+	
+	//called by the playback thread once per chunk, with the time it took to render the chunk and apply the volume,
+	//and the number of values which were clipped
+	void chunk(int frames,long nanos,int clipped){
+		chunks.incrementAndGet();
+		this.frames.addAndGet(frames);
+		renderNanos.addAndGet(nanos);
+		renderTime.record(nanos);
+		if(clipped>0) this.clipped.addAndGet(clipped);
+	}
+	
+	//called by the playback thread before each chunk is written, with the number of sample frames waiting to be played,
+	//and whether the sink has run dry since the last chunk
+	void buffered(long latency,boolean underrun){
+		fill.set(latency);
+		if(latency<minFill.get()) minFill.set(latency);
+		if(underrun) underruns.incrementAndGet();
+	}
+	
+	//called as each sync event is run, with how long it waited to be run
+	void syncRun(long lagNanos){syncLag.record(lagNanos);}
+	
+	private double allocationRate(){
+		long id=threadId;
+		if(id<0) return stoppedRate;
+		long bytes=allocatedBytes(id);
+		double seconds=(System.nanoTime()-startTime)/1e9;
+		
+		//the thread has just stopped, and stoppedRate has been set
+		if(bytes<0) return stoppedRate;
+		return seconds<=0? -1:(bytes-startBytes)/seconds;
+	}
+	
+	//the number of bytes the thread has allocated, or -1 if the JVM doesn't measure it
+	private static long allocatedBytes(long threadId){
+		java.lang.management.ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threadId);
+	}
+	
+	public long getChunks(){return chunks.get();}
+	public long getFrames(){return frames.get();}
+	public double getRenderTimeP50Micros(){return renderTime.percentile(.5)/1000.0;}
+	public double getRenderTimeP99Micros(){return renderTime.percentile(.99)/1000.0;}
+	public double getRenderTimeP999Micros(){return renderTime.percentile(.999)/1000.0;}
+	public double getRenderTimeMaxMicros(){return renderTime.max()/1000.0;}
+	public double getHeadroom(){return snapshot().headroom;}
+	public long getUnderruns(){return underruns.get();}
+	public double getBufferFill(){return snapshot().bufferFill;}
+	public double getMinBufferFill(){return snapshot().minBufferFill;}
+	public double getSyncLagP99Micros(){return syncLag.percentile(.99)/1000.0;}
+	public double getSyncLagMaxMicros(){return syncLag.max()/1000.0;}
+	public long getClippedSamples(){return clipped.get();}
+	public double getAllocationBytesPerSecond(){return allocationRate();}
+	
+	//a histogram of times in nanoseconds, with buckets an eighth of a power of two wide,
+	//so that percentiles are within 12.5% of the real value, whatever the range of the times
+	static class Histogram{
+		private final AtomicLongArray counts=new AtomicLongArray(496);
+		private final AtomicLong max=new AtomicLong();
+		
+		void record(long nanos){
+			counts.incrementAndGet(bucket(nanos));
+			if(nanos>max.get()) max.set(nanos);
+		}
+		
+		void reset(){
+			for(int i=0;i<counts.length();i++) counts.set(i,0);
+			max.set(0);
+		}
+		
+		long max(){return max.get();}
+		
+		//the time which a fraction p of the recorded times are at or below, rounded up to the top of its bucket,
+		//or 0 if nothing has been recorded
+		long percentile(double p){
+			long total=0;
+			for(int i=0;i<counts.length();i++) total+=counts.get(i);
+			if(total==0) return 0;
+			long target=Math.max(1,(long)Math.ceil(p*total));
+			for(int i=0;i<counts.length();i++){
+				target-=counts.get(i);
+				if(target<=0) return Math.min(top(i),max.get());
+			}
+			return max.get();
+		}
+		
+		//values under 8 have a bucket each, and above that each power of two is split into 8 buckets
+		private static int bucket(long nanos){
+			if(nanos<8) return (int)Math.max(nanos,0);
+			int e=63-Long.numberOfLeadingZeros(nanos);
+			return 8*(e-2)+(int)((nanos>>(e-3))&7);
+		}
+		
+		private static long top(int bucket){
+			if(bucket<8) return bucket;
+			int e=bucket/8+2;
+			return ((8L+bucket%8+1)<<(e-3))-1;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+//the attributes of a playing Sound which are published over JMX, see PlaybackMetrics
+//times are in microseconds, and everything is counted since playback started, or since reset was last called
+public interface PlaybackMetricsMXBean{
+	//the number of chunks rendered, and the number of sample frames in them
+	public long getChunks();
+	public long getFrames();
+	
+	//percentiles and the maximum of the time taken to render each chunk and apply the volume to it
+	public double getRenderTimeP50Micros();
+	public double getRenderTimeP99Micros();
+	public double getRenderTimeP999Micros();
+	public double getRenderTimeMaxMicros();
+	
+	//how many times faster than real time chunks are rendered, so a value under 1 means playback can't keep up
+	public double getHeadroom();
+	
+	//the number of times the sink ran out of sample frames to play
+	public long getUnderruns();
+	
+	//how full the sink's buffer was before the last chunk was written, and at its emptiest, from 0 to 1
+	public double getBufferFill();
+	public double getMinBufferFill();
+	
+	//how long sync events waited between becoming due and being run
+	public double getSyncLagP99Micros();
+	public double getSyncLagMaxMicros();
+	
+	//the number of sample values which were outside of -32768 to 32767 after the volume was applied
+	public long getClippedSamples();
+	
+	//the number of bytes allocated per second by the playback thread, or -1 if the JVM can't measure it
+	public double getAllocationBytesPerSecond();
+	
+	public void reset();
+}
\ No newline at end of file
@@ -0,0 +1,196 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+//renders an org file to a wav file, as fast as possible, without using a sound card
+//usage: java Render <org file> <wav file> [sample rate] [loops] [fade seconds] [sample file] [threads]
+//the song is rendered through its intro, then through its loop the given number of times,
+//and then continues to play while fading out over the given number of seconds
+//the defaults are a sample rate of 30000, one loop, no fade, and a sample file of orgsamp.dat
+//if the org file is a directory, every org file in it and its subdirectories is rendered,
+//into the same relative location in the wav file, which is then also a directory
+//this is done using a pool of the given number of threads, which defaults to the number of processors
+//a single org file is also rendered using that many threads, by splitting it into segments
+public class Render{
+	public static void main(String[] args) throws IOException,InterruptedException{
+		if(args.length<2){
+			System.err.println("usage: java Render <org file> <wav file> [sample rate] [loops] [fade seconds] [sample file] [threads]");
+			System.exit(1);
+		}
+		File in=new File(args[0]),out=new File(args[1]);
+		float sampleRate=args.length>2? Float.parseFloat(args[2]):30000;
+		int loops=args.length>3? Integer.parseInt(args[3]):1;
+		double fade=args.length>4? Double.parseDouble(args[4]):0;
+		SampleBank bank=SampleBank.get(new File(args.length>5? args[5]:"orgsamp.dat"));
+		int threads=args.length>6? Integer.parseInt(args[6]):Runtime.getRuntime().availableProcessors();
+		
+		long time=System.nanoTime();
+		if(in.isDirectory()){
+			int failed=batch(in,out,bank,sampleRate,loops,fade,threads);
+			time=System.nanoTime()-time;
+			System.out.println("finished in "+time/1000000+" ms");
+			if(failed>0){
+				System.err.println(failed+" files failed to render");
+				System.exit(2);
+			}
+		}else{
+			Organya org=new Organya(new FileInputStream(in),bank,sampleRate,null);
+			ForkJoinPool pool=threads>1? new ForkJoinPool(threads):null;
+			long frames=render(org,out,loops,fade,pool);
+			if(pool!=null) pool.shutdown();
+			time=System.nanoTime()-time;
+			System.out.println(out+": "+frames+" sample frames in "+time/1000000+" ms ("+
+				(int)(frames/sampleRate/(time/1e9))+"x real time)");
+		}
+	}
+	
+	//renders every org file in the directory in, and its subdirectories, into the directory out
+	//each file is rendered by its own Organya object, all of which share bank
+	//a file which fails to render is reported, but does not stop the rest of the files from being rendered
+	//returns the number of files which failed
+	public static int batch(File in,File out,final SampleBank bank,final float sampleRate,final int loops,
+			final double fade,int threads) throws InterruptedException{
+		List<File[]> jobs=new ArrayList<File[]>();
+		findOrgs(in,out,jobs);
+		
+		ExecutorService pool=Executors.newFixedThreadPool(threads);
+		List<Future<Long>> results=new ArrayList<Future<Long>>();
+		for(final File[] job:jobs){
+			results.add(pool.submit(new Callable<Long>(){
+				@Override
+				public Long call() throws IOException{
+					InputStream in=new FileInputStream(job[0]);
+					Organya org;
+					try{org=new Organya(in,bank,sampleRate,null);}
+					finally{in.close();}
+					job[1].getParentFile().mkdirs();
+					return render(org,job[1],loops,fade,null);
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		int failed=0;
+		for(int i=0;i<jobs.size();i++){
+			try{
+				System.out.println(jobs.get(i)[1]+": "+results.get(i).get()+" sample frames");
+			}catch(ExecutionException e){
+				failed++;
+				System.err.println(jobs.get(i)[0]+": "+e.getCause());
+			}
+		}
+		return failed;
+	}
+	
+	//adds a pair of files to jobs, the org file and the wav file to render it to, for each org file under in
+	private static void findOrgs(File in,File out,List<File[]> jobs){
+		File[] files=in.listFiles();
+		if(files==null) return;
+		Arrays.sort(files);
+		for(File f:files){
+			String name=f.getName();
+			if(f.isDirectory()) findOrgs(f,new File(out,name),jobs);
+			else if(name.endsWith(".org")) jobs.add(new File[]{f,new File(out,name.substring(0,name.length()-4)+".wav")});
+		}
+	}
+	
+	//the number of sample frames rendered by an org file, played through its intro and loops times through its loop
+	//does not include any fade
+	public static long length(Organya org,int loops){
+		return (long)org.getClickLen()*(org.getLoopPoint()+loops*(long)(org.getSongLen()-org.getLoopPoint()));
+	}
+	
+	//renders org to file, as described above, and returns the number of sample frames written
+	//if pool is not null, segments of the song are rendered in parallel using Organya.renderParallel
+	public static long render(Organya org,File file,int loops,double fade,ForkJoinPool pool) throws IOException{
+		if(loops<0) throw new IllegalArgumentException("Negative loop count: "+loops);
+		long frames=length(org,loops);
+		long fadeFrames=(long)(fade*org.getSampleRate()+.5);
+		
+		WavWriter out=new WavWriter(new BufferedOutputStream(new FileOutputStream(file),1<<16),
+			org.getSampleRate(),frames+fadeFrames);
+		try{
+			int chunk=pool==null? blockLen:parallelBlockLen*pool.getParallelism();
+			int[] block=new int[2*chunk];
+			for(long done=0;done<frames+fadeFrames;){
+				int len=(int)Math.min(chunk,frames+fadeFrames-done);
+				int rendered=pool==null? org.render(block,0,len):org.renderParallel(block,0,len,pool);
+				if(done+rendered>frames){
+					//fade out linearly, reaching zero just after the last sample frame
+					for(int i=(int)Math.max(0,frames-done);i<rendered;i++){
+						double vol=(double)(frames+fadeFrames-done-i)/(fadeFrames+1);
+						block[2*i]=(int)(block[2*i]*vol);
+						block[2*i+1]=(int)(block[2*i+1]*vol);
+					}
+				}
+				out.write(block,0,rendered);
+				done+=rendered;
+				if(rendered<len) throw new EOFException("Sound ended after "+done+" sample frames");
+			}
+		}finally{out.close();}
+		return frames+fadeFrames;
+	}
+	
+	private static final int blockLen=4096,parallelBlockLen=1<<17;
+}
+
+
+
+//writes 16 bit stereo sample frames to a wav file
+//sample values outside of -32768 to 32767 are clipped, as they are during playback
+class WavWriter implements Closeable{
+	private OutputStream out;
+	private byte[] bytes;
+	
+	//frames is the total number of sample frames which will be written, and is stored in the header
+	//if it is negative, the length is marked as unknown, for a stream which is never finished
+	public WavWriter(OutputStream out,float sampleRate,long frames) throws IOException{
+		this.out=out;
+		bytes=new byte[44];
+		long dataSize=frames<0? 0xFFFFFFFFL-36:4*frames;
+		if(dataSize>0xFFFFFFFFL-36) throw new IllegalArgumentException("Too many sample frames for a wav file: "+frames);
+		int rate=(int)sampleRate;
+		int index=0;
+		index=putString(index,"RIFF");
+		index=putInt(index,dataSize+36,4);
+		index=putString(index,"WAVE");
+		index=putString(index,"fmt ");
+		index=putInt(index,16,4);
+		index=putInt(index,1,2);
+		index=putInt(index,2,2);
+		index=putInt(index,rate,4);
+		index=putInt(index,rate*4L,4);
+		index=putInt(index,4,2);
+		index=putInt(index,16,2);
+		index=putString(index,"data");
+		index=putInt(index,dataSize,4);
+		out.write(bytes,0,index);
+	}
+	
+	private int putString(int index,String s){
+		for(int i=0;i<s.length();i++) bytes[index++]=(byte)s.charAt(i);
+		return index;
+	}
+	
+	private int putInt(int index,long value,int len){
+		for(int i=0;i<len;i++){bytes[index++]=(byte)value;value>>=8;}
+		return index;
+	}
+	
+	//writes frames interleaved sample frames from buffer, starting at buffer[offset]
+	public void write(int[] buffer,int offset,int frames) throws IOException{
+		if(bytes.length<frames*4) bytes=new byte[frames*4];
+		for(int i=0;i<frames*2;i++){
+			int value=buffer[offset+i];
+			if(value<-32768) value=-32768;
+			if(value>32767) value=32767;
+			bytes[2*i]=(byte)value;
+			bytes[2*i+1]=(byte)(value>>8);
+		}
+		out.write(bytes,0,frames*4);
+	}
+	
+	public void close() throws IOException{out.close();}
+}
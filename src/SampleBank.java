@@ -0,0 +1,96 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+//the instrument samples used by Organya, as loaded from a resource file such as orgsamp.dat
+//once loaded, the sample data is never modified, so it can be shared between threads,
+//and by any number of Organya objects
+//the file format is big endian, and consists of:
+//the number of melody samples (1 byte), the length of each melody sample (3 bytes), the melody samples,
+//the number of drum samples (1 byte), the sample rate of the drum samples (2 bytes),
+//and then for each drum sample, its length (3 bytes) followed by the sample itself
+class SampleBank{
+	final byte[][] melody,drums;
+	final int percSampleRate;
+	
+	//the sample banks which have been loaded by get, so that each file is only loaded once
+	private static final Map<File,SampleBank> loaded=new ConcurrentHashMap<File,SampleBank>();
+	
+	//returns the SampleBank stored in file, which is only loaded the first time this is called for that file
+	static SampleBank get(File file) throws IOException{
+		file=file.getCanonicalFile();
+		SampleBank bank=loaded.get(file);
+		if(bank==null){
+			bank=load(file);
+			SampleBank old=loaded.putIfAbsent(file,bank);
+			if(old!=null) bank=old;
+		}
+		return bank;
+	}
+	
+	//loads the SampleBank stored in file, by mapping it into memory and copying the samples out in bulk
+	static SampleBank load(File file) throws IOException{
+		FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.READ);
+		try{return new SampleBank(channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size()),file.toString());}
+		finally{channel.close();}
+	}
+	
+	//loads a SampleBank from resStream, which is closed afterwards
+	SampleBank(InputStream resStream) throws IOException{
+		this(read(resStream),"sample file");
+	}
+	
+	private static ByteBuffer read(InputStream resStream) throws IOException{
+		try{return ByteBuffer.wrap(resStream.readAllBytes());}
+		finally{resStream.close();}
+	}
+	
+	//loads a SampleBank from the remaining bytes of data
+	//name is used to describe the data in the exception thrown if it is truncated or corrupt
+	SampleBank(ByteBuffer data,String name) throws IOException{
+		data.order(ByteOrder.BIG_ENDIAN);
+		int mqty=readInt(data,1,name);
+		int mlen=readInt(data,3,name);
+		
+		//Organya always reads 256 points from each melody sample
+		if(mqty==0) throw new IOException(name+" is corrupt: it contains no melody samples");
+		if(mlen<256) throw new IOException(name+" is corrupt: its melody samples are only "+mlen+" bytes long");
+		melody=new byte[mqty][];
+		for(int i=0;i<mqty;i++) melody[i]=readBytes(data,mlen,name);
+		
+		drums=new byte[readInt(data,1,name)][];
+		percSampleRate=readInt(data,2,name);
+		if(percSampleRate==0) throw new IOException(name+" is corrupt: its drum sample rate is zero");
+		for(int i=0;i<drums.length;i++){
+			int len=readInt(data,3,name);
+			if(len==0) throw new IOException(name+" is corrupt: drum sample "+i+" is empty");
+			drums[i]=readBytes(data,len,name);
+		}
+	}
+	
+	private static int readInt(ByteBuffer data,int bytes,String name) throws EOFException{
+		check(data,bytes,name);
+		int ans=0;
+		for(int i=0;i<bytes;i++) ans=ans*256+(data.get()&255);
+		return ans;
+	}
+	
+	private static byte[] readBytes(ByteBuffer data,int len,String name) throws EOFException{
+		check(data,len,name);
+		byte[] ans=new byte[len];
+		data.get(ans);
+		return ans;
+	}
+	
+	private static void check(ByteBuffer data,int bytes,String name) throws EOFException{
+		if(data.remaining()<bytes){
+			throw new EOFException(name+" is truncated: expected "+bytes+" more bytes at offset "+data.position()+
+				", but there are only "+data.remaining());
+		}
+	}
+}
@@ -1,34 +1,78 @@
 import java.io.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import javax.sound.sampled.*;
 
 
 
 public abstract class Sound{
-	private PriorityBlockingQueue<SyncData> bufferSyncs,realSyncs;
+	private ConcurrentLinkedQueue<SyncData> newSyncs,firedSyncs;
+	private AtomicBoolean dispatching;
+	private volatile Executor syncExecutor;
 	private Monitor monitor;
+	private final PlaybackMetrics metrics;
 	private AudioFormat fmt;
 	private float sampleRate;
-	private volatile boolean playing,linear,syncsObserved;
-	private volatile double currentVol,targetVol;
-	private volatile int untilTarget,bufferPos;
+	private volatile boolean playing;
+	private volatile VolumeChange volumeChange;
 	private volatile long samplesBuffered;
-	private SourceDataLine line;
-	private Object linelock;
+	private volatile int adaptiveMin,bufferTarget;
+	
+	//the number of playback threads which haven't finished yet, which may be more than one just after playback is stopped and restarted
+	private int playbackThreads;
+	
+	//counts the calls to play, so that a playback thread which has been stopped and replaced by a newer one knows to finish,
+	//and leaves the state belonging to the new one alone
+	private volatile int generation;
+	
+	//held by each playback thread while it runs, so that a new one waits for the one it replaced to finish its last chunk,
+	//since render isn't safe to call from two threads at once
+	private final Object playbackLock=new Object();
+	private volatile AudioSink sink;
+	private int[] frameBuffer=new int[2];
+	
+	//the volume, which is only used by the playback thread, and the volume change it is carrying out
+	//these are kept here so that they carry over when playback is stopped and started again
+	private double currentVol,targetVol;
+	private int untilTarget;
+	private boolean linear;
+	private VolumeChange currentChange;
+	
+	//how many seconds of playback without an underrun or a slow chunk it takes for an adaptive buffer to shrink a step
+	private static final double calmSeconds=10;
+	
+	//playback runs on threads which are kept for a while once playback stops, so that starting again, or playing another sound,
+	//doesn't start a new thread each time
+	//they aren't daemon threads, so that a program doesn't exit while a sound is playing,
+	//but they end keepAliveSeconds after they were last used, so that they don't hold up the program exiting for long
+	private static final long keepAliveSeconds=10;
+	private static final ExecutorService players=new ThreadPoolExecutor(0,Integer.MAX_VALUE,keepAliveSeconds,TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(),Threads.factory("Sound playback",false,Thread.NORM_PRIORITY));
+	
+	//the executor sync events are dispatched to unless another one is set, a single daemon thread shared by all sounds
+	private static final Executor defaultSyncExecutor=Threads.daemonExecutor("Sound sync dispatch");
 	
 	//you may either specify a Monitor to be sent the sample frames as they are buffered, or have monitor be null
+	//it is sent each sample frame as it is buffered, or each chunk if it is a BlockMonitor, after the volume has been applied but before clipping
 	//for example, perhaps you want the sound shown graphically in an oscilloscope or level monitor
 	//the monitor will be sent null when playback stops
 	public Sound(Monitor monitor){
 		this.monitor=monitor;
+		metrics=new PlaybackMetrics(this);
 		fmt=null;
 		playing=false;
 		currentVol=targetVol=1;
-		samplesBuffered=untilTarget=bufferPos=0;
-		bufferSyncs=new PriorityBlockingQueue<SyncData>();
-		realSyncs=new PriorityBlockingQueue<SyncData>();
-		line=null;
-		linelock=new Object();
+		samplesBuffered=untilTarget=0;
+		newSyncs=new ConcurrentLinkedQueue<SyncData>();
+		firedSyncs=new ConcurrentLinkedQueue<SyncData>();
+		dispatching=new AtomicBoolean();
+		syncExecutor=defaultSyncExecutor;
+		sink=null;
 	}
 	
 	//this method must be called exactly once before play is called
@@ -48,123 +92,362 @@ public abstract class Sound{
 	//however, it may be called before play, if you want playback to start at a volume other than one
 	public final void setVolume(double volume,double duration,boolean exponential){
 		if(fmt==null) throw new IllegalStateException("Sample rate has not been set");
-		linear=!exponential;
-		untilTarget=(int)(duration*sampleRate+.5);
-		targetVol=volume;
+		volumeChange=new VolumeChange(volume,(int)(duration*sampleRate+.5),!exponential);
+	}
+	
+	//a call to setVolume, which is passed to the playback thread through a single volatile field
+	private static class VolumeChange{
+		public final double volume;
+		public final int frames;
+		public final boolean linear;
+		
+		public VolumeChange(double volume,int frames,boolean linear){
+			this.volume=volume;
+			this.frames=frames;
+			this.linear=linear;
+		}
 	}
 	
 	public final boolean isPlaying(){return playing;}
 	
+	//measurements of how playback is going, such as how long each chunk takes to render and how often the sink runs dry
+	//these are kept across stops and starts, until PlaybackMetrics.reset is called
+	public final PlaybackMetrics getMetrics(){return metrics;}
+	
+	//makes the buffer adapt to how well playback is keeping up, the next time play is called
+	//the buffer passed to play is still opened at full length, but playback only keeps minLen sample frames waiting to be played at first
+	//whenever the sink runs dry, or a chunk takes more than half as long to render as it lasts, that target is raised,
+	//up to the full length of the buffer, and after calmSeconds of smooth playback it is lowered again a little, down to minLen
+	//chunks are a quarter of the target, so the lower it is, the more often sync events are checked
+	//this only has an effect on sinks which play in real time, and if minLen is 0, which is the default, the buffer is always full length
+	public final void setAdaptiveBuffer(int minLen){
+		if(minLen<0) throw new IllegalArgumentException("Negative buffer length: "+minLen);
+		adaptiveMin=minLen;
+	}
+	
+	//the number of sample frames written to the sink which haven't been played yet, which is how far behind what is being rendered
+	//the sound that can be heard is, or 0 if the sound isn't playing
+	//this changes as the buffer fills and empties, and is at most the buffer target
+	public final long getLatencyFrames(){
+		AudioSink s=sink;
+		return s==null? 0:s.getLatencyFrames();
+	}
+	
+	//the most sample frames playback keeps waiting to be played, which is the length of the buffer unless it is adaptive,
+	//or 0 if the sound isn't playing
+	public final int getBufferTarget(){return playing? bufferTarget:0;}
+	
+	//this method may not be called before setSampleRate
+	public final float getSampleRate(){
+		if(fmt==null) throw new IllegalStateException("Sample rate has not been set");
+		return sampleRate;
+	}
+	
 	//use this method to synchronize audio playback with other events
 	//causes a sync event to be triggered at a certain point in playback
 	//if relative is false, this point will be offset sample frames after playback started
 	//if relative is true, this point will be offset sample frames after the current playback position
 	//if this point is earlier than the current playback position, the sync event is triggered immediately
 	//if realtime is false, the timing is based on when sample frames are buffered
-	//if realtime is true, the timing is based on when sample frames are played
+	//if realtime is true, the timing is based on when sample frames are played, according to the sink being played to
+	//the playback thread picks up new sync events and works out which ones are due once per chunk,
+	//but each one is passed the exact sample frame it was due at (or the frame it was noticed at, if that was already past)
+	//adding sync events never blocks, so adding thousands of them is cheap
 	public final void addSync(SoundSync sync,long offset,boolean relative,boolean realtime){
 		if(relative){
 			if(realtime){
-				synchronized(linelock){if(line!=null) offset+=line.getLongFramePosition();}
+				AudioSink s=sink;
+				if(s!=null) offset+=s.getFramePosition();
 			}else{
 				offset+=samplesBuffered;
 			}
 		}
-		(realtime? realSyncs:bufferSyncs).add(new SyncData(sync,offset));
-		syncsObserved=false;
+		newSyncs.add(new SyncData(sync,offset,realtime));
 	}
 	
-	//this is the method that all subclasses of this class must implement
+	//sets where sync events are run
+	//by default they are run, in order, on a single daemon thread shared by all sounds,
+	//so that a slow SoundSync.sync can never hold up the playback thread and cause it to fall behind
+	//to have them run on the Swing event dispatch thread instead, pass an executor which calls EventQueue.invokeLater
+	//if executor is null, sync events are run directly on the playback thread,
+	//and buffer sync events are run just before their sample frame is rendered, as in older versions of this class
+	public final void setSyncExecutor(Executor executor){syncExecutor=executor;}
+	
+	//runs the sync events handed off by the playback thread, in the order they became due
+	//only one of these is ever waiting on the executor at a time, so sync events can't overtake each other
+	private final Runnable dispatcher=new Runnable(){
+		public void run(){
+			do{
+				try{
+					SyncData d;
+					while((d=firedSyncs.poll())!=null){
+						metrics.syncRun(System.nanoTime()-d.fired);
+						d.sync.sync(d.frame);
+					}
+				}finally{
+					dispatching.set(false);
+				}
+			}while(!firedSyncs.isEmpty() && dispatching.compareAndSet(false,true));
+		}
+	};
+	
+	//called by the playback thread after handing off sync events
+	private void dispatchSyncs(Executor executor){
+		if(firedSyncs.isEmpty() || !dispatching.compareAndSet(false,true)) return;
+		if(executor==null) dispatcher.run();
+		else executor.execute(dispatcher);
+	}
+	
+	//this is the method that subclasses of this class should implement
+	//each time it is called, it should render up to frames sample frames into buffer and move past them
+	//the sample frames are interleaved, left then right, with the first value stored at buffer[offset]
+	//it returns the number of sample frames rendered
+	//if this is less than frames, playback is stopped once the rendered sample frames have been played
+	//this is equivalent to calling the stop method
+	//the default implementation calls getSampleFrame once per sample frame, for subclasses which only implement that
+	public int render(int[] buffer,int offset,int frames){
+		for(int i=0;i<frames;i++){
+			SampleFrame s=getSampleFrame();
+			if(s==null) return i;
+			buffer[offset++]=s.left;
+			buffer[offset++]=s.right;
+		}
+		return frames;
+	}
+	
+	//the older, one-sample-frame-at-a-time version of render
 	//each time it is called, it should return a sample frame and move to the next sample frame
 	//if it returns null, playback is stopped
-	//this is equivalent to calling the stop method
-	public abstract SampleFrame getSampleFrame();
+	//subclasses must implement at least one of this method and render, since each one defaults to calling the other
+	//implementing render is preferable, since this method allocates a new SampleFrame for every call
+	public SampleFrame getSampleFrame(){
+		if(render(frameBuffer,0,1)<1) return null;
+		SampleFrame ans=new SampleFrame();
+		ans.left=frameBuffer[0];
+		ans.right=frameBuffer[1];
+		return ans;
+	}
+	
+	//begin playback through the sound card with a buffer of bufferLen sample frames
+	//the line is opened with a buffer of that length, which is the most audio that can be waiting to be played,
+	//and so is the latency of playback, although the sound card may choose a slightly different buffer length
+	//this method does nothing if the sound is already playing
+	public final void play(int bufferLen) throws LineUnavailableException{
+		try{play(new LineSink(),bufferLen);}
+		catch(IOException e){throw new AssertionError(e);}
+	}
 	
-	//begin playback with a buffer of bufferLen sample frames
+	//begin playback to sink, which is opened with a buffer of bufferLen sample frames
+	//sample frames are rendered and written to the sink in chunks of a quarter of the buffer,
+	//and the playback thread simply blocks writing to the sink while the buffer is full
+	//the sink isn't started until the buffer has been filled, so that it never starts with less than a buffer to play,
+	//which also means the first sample frame is heard as soon as the buffer has been rendered
+	//the sink is closed once playback stops, and playback also stops if writing to the sink fails
 	//this method does nothing if the sound is already playing
-	public final synchronized void play(int bufferLen) throws LineUnavailableException{
+	public final synchronized void play(final AudioSink sink,final int bufferLen) throws IOException,LineUnavailableException{
 		if(playing) return;
 		if(fmt==null) throw new IllegalStateException("Sample rate has not been set");
-		new Thread(){
-			private int bufferLen;
-			private long nextBufferSync,nextRealSync;
-			
-			public void start(int bufferLen) throws LineUnavailableException{
-				this.bufferLen=bufferLen;
-				line=(SourceDataLine)AudioSystem.getLine(new DataLine.Info(SourceDataLine.class,fmt));
-				line.open(fmt);
-				playing=true;
-				syncsObserved=false;
-				start();
+		sink.open(fmt,bufferLen);
+		this.sink=sink;
+		playing=true;
+		samplesBuffered=0;
+		playbackThreads++;
+		final int gen=++generation;
+		players.execute(new Runnable(){
+			public void run(){
+				synchronized(playbackLock){
+					try{
+						if(generation==gen) samplesBuffered=0;
+						loop();
+					}finally{
+						finish();
+					}
+				}
 			}
 			
-			public void run(){
-				byte[] buffer=new byte[(bufferLen/2)*4];
-				line.start();
-				while(playing){
-					if(!syncsObserved){
-						syncsObserved=true;
-						nextBufferSync=nextRealSync=Long.MAX_VALUE;
-						SyncData bs=bufferSyncs.peek();
-						SyncData rs=realSyncs.peek();
-						if(bs!=null) nextBufferSync=bs.time;
-						if(rs!=null) nextRealSync=rs.time;
+			private void loop(){
+				int chunkLen=Math.max(1,bufferLen/4);
+				int[] block=new int[chunkLen*2];
+				int minLen=adaptiveMin;
+				boolean adaptive=minLen>0 && minLen<bufferLen && sink.isRealTime();
+				int target=adaptive? minLen:bufferLen;
+				bufferTarget=target;
+				long calm=0;
+				SampleBlock view=new SampleBlock();
+				PriorityQueue<SyncData> bufferSyncs=new PriorityQueue<SyncData>(),realSyncs=new PriorityQueue<SyncData>();
+				long buffered=0,played=0;
+				boolean ended=false,started=false;
+				metrics.started(sampleRate,bufferLen);
+				while(playing && generation==gen){
+					SyncData d;
+					while((d=newSyncs.poll())!=null) (d.realtime? realSyncs:bufferSyncs).add(d);
+					Executor executor=syncExecutor;
+					
+					//buffer sync events due at or before the start of this chunk
+					while(!bufferSyncs.isEmpty() && bufferSyncs.peek().time<=buffered) fire(bufferSyncs.poll(),buffered);
+					dispatchSyncs(executor);
+					
+					//when sync events are run on this thread, never render past the next buffer sync,
+					//so that it is run before its sample frame is rendered
+					int len=adaptive? Math.max(1,Math.min(chunkLen,target/4)):chunkLen;
+					if(executor==null && !bufferSyncs.isEmpty() && bufferSyncs.peek().time-buffered<len) len=(int)(bufferSyncs.peek().time-buffered);
+					long renderStart=System.nanoTime();
+					int rendered=render(block,0,len);
+					if(rendered<len) ended=true;
+					
+					//otherwise, every buffer sync event inside the chunk is handed off at once,
+					//along with one due just after the last sample frame, if this is the last chunk, since there won't be another chunk to run it
+					while(!bufferSyncs.isEmpty() && (bufferSyncs.peek().time<buffered+rendered || ended && bufferSyncs.peek().time==buffered+rendered)){
+						d=bufferSyncs.poll();
+						fire(d,d.time);
 					}
 					
-					if(line.getLongFramePosition()>=nextRealSync){
-						realSyncs.remove().sync.sync();
-						syncsObserved=false;
+					int clipped=finishChunk(block,rendered,buffered,view);
+					long renderNanos=System.nanoTime()-renderStart;
+					metrics.chunk(rendered,renderNanos,clipped);
+					
+					//a sink which plays in real time has run dry if nothing is left to play by the time the next chunk is ready
+					if(sink.isRealTime() && started){
+						long latency=sink.getLatencyFrames();
+						metrics.buffered(latency,latency==0);
+						
+						if(adaptive){
+							boolean starved=latency==0,slow=renderNanos*2>rendered*1e9/sampleRate;
+							if(starved || slow){
+								target=Math.min(bufferLen,target+Math.max(1,target/(starved? 2:4)));
+								calm=buffered;
+							}else if(buffered-calm>=calmSeconds*sampleRate && target>minLen){
+								target=Math.max(minLen,target-target/8);
+								calm=buffered;
+							}
+							bufferTarget=target;
+							
+							//wait until writing the chunk won't take the sink over the target
+							for(long over;(over=latency+rendered-target)>0;latency=sink.getLatencyFrames()){
+								LockSupport.parkNanos((long)(over*1e9/sampleRate));
+							}
+						}
 					}
 					
-					if(samplesBuffered>=nextBufferSync){
-						bufferSyncs.remove().sync.sync();
-						syncsObserved=false;
+					//this blocks until there is room in the sink's buffer
+					try{sink.write(block,0,rendered);}
+					catch(IOException e){
+						e.printStackTrace();
+						ended=true;
 					}
+					buffered+=rendered;
+					if(generation==gen) samplesBuffered=buffered;
 					
-					if(untilTarget>0){
-						currentVol+=(targetVol-currentVol)/untilTarget;
-						if(linear) untilTarget--;
-					}else currentVol=targetVol;
+					//the sink starts once there isn't room for another chunk
+					if(!started && (ended || buffered+len>target)){
+						sink.start();
+						started=true;
+					}
+					if(ended){
+						sink.drain();
+						synchronized(Sound.this){
+							if(generation==gen) playing=false;
+						}
+					}
 					
-					SampleFrame s=getSampleFrame();
-					if(s==null) playing=false;
-					else{
-						samplesBuffered++;
-						buffer(buffer,bufferPos*4,s.left=(int)(s.left*currentVol));
-						buffer(buffer,bufferPos*4+2,s.right=(int)(s.right*currentVol));
-						bufferPos++;
-						if(bufferPos==bufferLen/2){
-							line.write(buffer,0,4*bufferPos);
-							bufferPos=0;
+					//real time sync events are checked against the sink's position once per chunk
+					long position=sink.getFramePosition();
+					while(!realSyncs.isEmpty() && realSyncs.peek().time<=position){
+						d=realSyncs.poll();
+						fire(d,Math.max(d.time,played));
+					}
+					played=position;
+					dispatchSyncs(executor);
+				}
+			}
+			
+			//this runs however the loop ended, even if render, the monitor or a sync event run on this thread threw an exception,
+			//which is then left to the thread's uncaught exception handler, so that stopAndWait never waits for a thread which has died
+			private void finish(){
+				try{
+					if(monitor!=null) sendToMonitor(null);
+				}finally{
+					synchronized(Sound.this){
+						//the sound may already be playing again, to another sink, with sync events of its own
+						if(Sound.this.sink==sink) Sound.this.sink=null;
+						if(generation==gen){
+							playing=false;
+							samplesBuffered=0;
+							newSyncs.clear();
 						}
-						synchronized(this){
-							while(line.getLongFramePosition()+bufferLen<samplesBuffered){
-								try{wait(0,10000);}catch(InterruptedException e){}
-							}
+					}
+					try{sink.close();}
+					catch(IOException e){e.printStackTrace();}
+					finally{
+						metrics.stopped();
+						synchronized(Sound.this){
+							playbackThreads--;
+							Sound.this.notifyAll();
 						}
-						if(monitor!=null) monitor.monitor(s);
 					}
 				}
-				if(monitor!=null) monitor.monitor(null);
-				synchronized(linelock){line.close();line=null;}
-				samplesBuffered=0;
-				bufferPos=0;
-				bufferSyncs.clear();
-				realSyncs.clear();
 			}
 			
-			private void buffer(byte[] buffer,int index,int value){
-				if(value<-32768) value=-32768;
-				if(value>=32768) value=32767;
-				if(value<0) value+=65536;
-				buffer[index]=(byte)(value%256);
-				buffer[index+1]=(byte)(value/256);
+			private void fire(SyncData d,long frame){
+				d.frame=frame;
+				d.fired=System.nanoTime();
+				firedSyncs.add(d);
 			}
-		}.start(bufferLen);
+		});
+	}
+	
+	//applies the volume to a chunk of frames sample frames rendered into block, which starts start sample frames into playback,
+	//then sends it to the monitor through view, and returns the number of sample values which will be clipped
+	private int finishChunk(int[] block,int frames,long start,SampleBlock view){
+		VolumeChange change=volumeChange;
+		if(change!=currentChange){
+			currentChange=change;
+			targetVol=change.volume;
+			untilTarget=change.frames;
+			linear=change.linear;
+		}
+		double vol=currentVol;
+		int clipped=0;
+		for(int i=0;i<frames*2;i+=2){
+			if(untilTarget>0){
+				vol+=(targetVol-vol)/untilTarget;
+				if(linear) untilTarget--;
+			}else vol=targetVol;
+			
+			int left=block[i]=(int)(block[i]*vol);
+			int right=block[i+1]=(int)(block[i+1]*vol);
+			if(left<-32768 || left>32767) clipped++;
+			if(right<-32768 || right>32767) clipped++;
+		}
+		currentVol=vol;
+		if(monitor!=null){
+			view.set(block,frames,start);
+			sendToMonitor(view);
+		}
+		return clipped;
+	}
+	
+	//sends a chunk to the monitor, or null once playback stops, in one call if it is a BlockMonitor, or else a sample frame at a time
+	private void sendToMonitor(SampleBlock b){
+		if(monitor instanceof BlockMonitor){
+			((BlockMonitor)monitor).monitor(b);
+			return;
+		}
+		if(b==null){
+			monitor.monitor(null);
+			return;
+		}
+		for(int i=0;i<b.getFrames();i++){
+			SampleFrame s=new SampleFrame();
+			s.left=b.getLeft(i);
+			s.right=b.getRight(i);
+			monitor.monitor(s);
+		}
 	}
 	
 	//stops playback
-	//note that this resets the internal playback counter to zero and removes all pending sync events
+	//note that this resets the internal playback counter to zero and removes all pending sync events,
+	//although sync events which have already become due are still run
 	//is does not, however, do anything to notify the subclass that playback has stopped
 	//meaning that any subsequent calls to getSampleFrame will continue right where they left off
 	//in this way, it functions more as a "pause" than a "stop"
@@ -172,11 +455,27 @@ public abstract class Sound{
 	//it does function as more as a "stop" with regards to sync events
 	public final void stop(){playing=false;}
 	
+	//stops playback, and waits for the playback thread to finish writing its last chunk and close the sink
+	//for a LineSink, this means its line is ready to be reused straight away, by this sound or another one
+	public final synchronized void stopAndWait(){
+		playing=false;
+		boolean interrupted=false;
+		while(playbackThreads>0){
+			try{wait();}
+			catch(InterruptedException e){interrupted=true;}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+	
 	private class SyncData implements Comparable<SyncData>{
 		public SoundSync sync;
-		public long time;
+		public long time,frame;
+		
+		//when the sync event was handed off to be run, by System.nanoTime
+		public long fired;
+		public boolean realtime;
 		
-		public SyncData(SoundSync sync,long time){this.sync=sync;this.time=time;}
+		public SyncData(SoundSync sync,long time,boolean realtime){this.sync=sync;this.time=time;this.realtime=realtime;}
 		
 		@Override
 		public boolean equals(Object arg0){
@@ -202,101 +501,295 @@ class SampleFrame{public int left=0,right=0;}
 
 
 
+//a read-only view of a chunk of sample frames, as it is buffered
+//it is only valid during the call to BlockMonitor.monitor, since the playback thread reuses it for the next chunk
+class SampleBlock{
+	private int[] samples;
+	private int frames;
+	private long start;
+	
+	void set(int[] samples,int frames,long start){
+		this.samples=samples;
+		this.frames=frames;
+		this.start=start;
+	}
+	
+	//the number of sample frames in the chunk
+	public int getFrames(){return frames;}
+	
+	//the number of sample frames buffered before the chunk, since playback started
+	public long getStartFrame(){return start;}
+	
+	public int getLeft(int frame){
+		if(frame<0 || frame>=frames) throw new IndexOutOfBoundsException("Frame "+frame+" of "+frames);
+		return samples[2*frame];
+	}
+	
+	public int getRight(int frame){
+		if(frame<0 || frame>=frames) throw new IndexOutOfBoundsException("Frame "+frame+" of "+frames);
+		return samples[2*frame+1];
+	}
+}
+
+
+
 //monitors audio data as it's being played
 //see constructor of Sound
+//the playback thread calls monitor once per sample frame, with a new SampleFrame each time
+//a BlockMonitor is sent whole chunks instead, which is much cheaper for the playback thread
 interface Monitor{public void monitor(SampleFrame s);}
 
 
 
+//a Monitor which the playback thread calls once per chunk, rather than once per sample frame
+//monitor(SampleFrame) is only there so that this can be passed wherever a Monitor is, and passes each sample frame on as a chunk of one
+interface BlockMonitor extends Monitor{
+	public void monitor(SampleBlock b);
+	
+	public default void monitor(SampleFrame s){
+		if(s==null){monitor((SampleBlock)null);return;}
+		SampleBlock b=new SampleBlock();
+		b.set(new int[]{s.left,s.right},1,0);
+		monitor(b);
+	}
+}
+
+
+
 //handles sync events
 //see Sound.addSync method
-interface SoundSync{public void sync();}
+//sync(frame) is passed the sample frame the event was due at, and by default just calls sync()
+interface SoundSync{
+	public void sync();
+	public default void sync(long frame){sync();}
+}
 
 
 
-//note that both of the above interfaces have their methods called in the speed-critical audio buffering thread
-//it is therefore unwise to put large amounts of code in an implementation of Monitor.monitor or SoundSync.sync
-//if large amounts of computation are required by either method,
-//it would be better for said method to cause the computation to happen in another thread
+//note that Monitor.monitor is called in the speed-critical audio buffering thread
+//it is therefore unwise to put large amounts of code in an implementation of it
+//if large amounts of computation are required,
+//it would be better for it to cause the computation to happen in another thread
+//SoundSync.sync is run by the sync executor (see Sound.setSyncExecutor), so it is only called in that thread if that is null
 
 
 
 //a Sound which plays a *.wav file
+//8 and 16 bit PCM files, in mono or stereo, are supported
+//the chunks in the file may be in any order, and any chunks other than "fmt " and "data" are skipped
 class WavSound extends Sound{
-	private int pos;
-	private boolean loop;
-	private int[][] samples;
-	
-	//if loop is true, getSampleFrame will never return null
-	//if loop is false, getSampleFrame will return null when the end of the file is reached
-	//note that the constructor may take a long time to execute for large wav files
-	//on my computer, it loads at about 200 kilobytes/second
-	//I tried solving this by having a "loader thread" which loads the file in the background,
-	//so you can play the file as its loading,
-	//rather than having to load the entire file into memory before being able to play it,
-	//but it turned out to be impractical to make it not hog so much cpu time that the player thread stutters
-	//note that this constructor assumes the "fmt " chunk will be the first one in the file
-	//the "data" chunk may be anywhere in the file though
-	//all other chunks are ignored
+	private int pos,frames;
+	private boolean loop,stereo,hidef;
+	
+	//when the file is loaded, the sample values, interleaved left then right if the file is stereo
+	private short[] samples;
+	
+	//when the file is streamed, the data chunk mapped into memory, which is decoded as it is played
+	private ByteBuffer data;
+	
+	//the number of bytes of the data chunk read and decoded at once when loading
+	private static final int blockLen=1<<16;
+	
+	//if loop is true, render will never return fewer sample frames than asked for
+	//if loop is false, render will stop when the end of the file is reached
+	//if stream is false, the whole file is loaded into memory, as the constructor below does
+	//if stream is true, then rather than being loaded, the file's "data" chunk is mapped into memory,
+	//and the sample frames are decoded from it as they're played
+	//this means the constructor returns almost immediately, even for very large files,
+	//and the samples don't take up any space on the heap
+	//this is better for long pieces of music, while loading is better for short sound effects
+	public WavSound(File file,boolean loop,boolean stream,Monitor monitor) throws IOException{
+		super(monitor);
+		this.loop=loop;
+		pos=0;
+		
+		FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.READ);
+		try{
+			ByteBuffer header=ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel,header,0,12);
+			if(header.getInt(0)!=chunkId("RIFF") || header.getInt(8)!=chunkId("WAVE")) throw new IOException(file+" is not a wav file");
+			
+			//look at the header of each chunk, and skip over its contents unless it's the "fmt " or "data" chunk
+			//chunks with an odd size are followed by a padding byte
+			long chunk=12,dataStart=-1,dataSize=0;
+			boolean hasFormat=false;
+			while(!hasFormat || dataStart<0){
+				readFully(channel,header,chunk,8);
+				int id=header.getInt(0);
+				long size=header.getInt(4)&0xFFFFFFFFL;
+				if(id==chunkId("fmt ")){
+					if(size<16) throw new IOException("The \"fmt \" chunk is too short");
+					readFully(channel,header,chunk+8,16);
+					readFormat(header);
+					hasFormat=true;
+				}else if(id==chunkId("data")){
+					dataStart=chunk+8;
+					dataSize=size;
+				}
+				chunk+=8+size+(size&1);
+			}
+			
+			//a data chunk which runs past the end of the file is cut short, rather than being an error,
+			//so that files which are still being written can be played
+			int frameSize=(stereo? 2:1)*(hidef? 2:1);
+			long len=Math.min(dataSize,channel.size()-dataStart)/frameSize;
+			if(len*frameSize>Integer.MAX_VALUE) throw new IOException(file+" is too large");
+			frames=(int)len;
+			if(stream){
+				data=channel.map(FileChannel.MapMode.READ_ONLY,dataStart,len*frameSize).order(ByteOrder.LITTLE_ENDIAN);
+			}else{
+				samples=new short[frames*(stereo? 2:1)];
+				ByteBuffer block=ByteBuffer.allocate(blockLen).order(ByteOrder.LITTLE_ENDIAN);
+				int index=0;
+				for(long done=0;done<len*frameSize;done+=block.limit()){
+					readFully(channel,block,dataStart+done,(int)Math.min(blockLen,len*frameSize-done));
+					block.flip();
+					index=decode(block,index);
+				}
+			}
+		}finally{channel.close();}
+	}
+	
+	//loads a wav file from in, which is read to the end of the "data" chunk or the "fmt " chunk, whichever is later
+	//the data chunk is read in large blocks and decoded straight into the array of sample values,
+	//which takes up very little more memory than the file's data chunk
+	//unless the data chunk comes before the "fmt " chunk, in which case it has to be read in whole first
 	public WavSound(InputStream in,boolean loop,Monitor monitor) throws IOException{
 		super(monitor);
 		this.loop=loop;
 		pos=0;
-		readInt(in,16);
-		int formatSize=readInt(in,4);
-		readInt(in,2);
-		boolean stereo=readInt(in,2)==2;
-		setSampleRate(readInt(in,4));
-		readInt(in,6);
-		boolean hidef=readInt(in,2)==16;
-		readInt(in,formatSize-16);
-
-		int[] dataStr={'d','a','t','a'};
-		int expected=0,pval=1;
-		for(int x:dataStr){expected+=x*pval;pval*=256;}
-		int header=readInt(in,4);
-		while(header!=expected){int size=readInt(in,4);readInt(in,size);header=readInt(in,4);}
 		
-		int dataSize=readInt(in,4);
-		int sampleSize=stereo? 2:1;
-		if(hidef) sampleSize*=2;
-		dataSize/=sampleSize;
-		samples=new int[dataSize][2];
-		for(int i=0;i<dataSize;i++){
-			samples[i][0]=readSample(in,hidef);
-			if(stereo) samples[i][1]=readSample(in,hidef);
-			else samples[i][1]=samples[i][0];
+		byte[] bytes=new byte[blockLen];
+		ByteBuffer block=ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(in,bytes,12);
+		if(block.getInt(0)!=chunkId("RIFF") || block.getInt(8)!=chunkId("WAVE")) throw new IOException("Not a wav file");
+		
+		byte[] early=null;
+		boolean hasFormat=false;
+		while(!hasFormat || samples==null){
+			readFully(in,bytes,8);
+			int id=block.getInt(0);
+			long size=block.getInt(4)&0xFFFFFFFFL;
+			long pad=size&1;
+			if(id==chunkId("fmt ")){
+				if(size<16) throw new IOException("The \"fmt \" chunk is too short");
+				readFully(in,bytes,16);
+				readFormat(block);
+				hasFormat=true;
+				skipFully(in,size-16+pad);
+				if(early!=null) samples=decodeAll(early);
+			}else if(id==chunkId("data")){
+				if(size>Integer.MAX_VALUE) throw new IOException("The \"data\" chunk is too large");
+				if(!hasFormat){
+					early=new byte[(int)size];
+					readFully(in,early,early.length);
+				}else{
+					int frameSize=(stereo? 2:1)*(hidef? 2:1);
+					frames=(int)(size/frameSize);
+					samples=new short[frames*(stereo? 2:1)];
+					int index=0;
+					for(long done=0;done<(long)frames*frameSize;done+=block.limit()){
+						int len=(int)Math.min(blockLen,(long)frames*frameSize-done);
+						readFully(in,bytes,len);
+						block.clear().limit(len);
+						index=decode(block,index);
+					}
+					skipFully(in,size-(long)frames*frameSize);
+				}
+				skipFully(in,pad);
+			}else skipFully(in,size+pad);
 		}
 	}
 	
-	private int readSample(InputStream in,boolean hidef) throws IOException{
-		int a=in.read();
-		if(a==-1) throw new EOFException();
-		if(!hidef) return (a-128)*256;
-		int b=in.read();
-		if(b==-1) throw new EOFException();
-		if(b>=128) b-=256;
-		return b*256+a;
+	//reads the first 16 bytes of a "fmt " chunk from the start of format, and sets the sample rate
+	private void readFormat(ByteBuffer format) throws IOException{
+		int type=format.getShort(0),channels=format.getShort(2),bits=format.getShort(14);
+		if(type!=1) throw new IOException("Only PCM wav files are supported, but the format type is "+type);
+		if(channels!=1 && channels!=2) throw new IOException("Only mono and stereo wav files are supported, not "+channels+" channels");
+		if(bits!=8 && bits!=16) throw new IOException("Only 8 and 16 bit wav files are supported, not "+bits+" bits");
+		stereo=channels==2;
+		hidef=bits==16;
+		setSampleRate(format.getInt(4));
 	}
 	
-	private int readInt(InputStream in,int bytes) throws IOException{
-		int ans=0,pval=1;
-		for(int i=0;i<bytes;i++){
-			int b=in.read();
-			if(b==-1) throw new EOFException();
-			ans+=b*pval;
-			pval*=256;
+	//decodes all of the bytes remaining in block into samples, starting at index, and returns the next index
+	//block must be in little endian order, and contain a whole number of sample frames
+	private int decode(ByteBuffer block,int index){
+		if(hidef){
+			int len=block.remaining()/2;
+			block.asShortBuffer().get(samples,index,len);
+			return index+len;
 		}
-		return ans;
+		while(block.hasRemaining()) samples[index++]=(short)(((block.get()&255)-128)*256);
+		return index;
 	}
 	
-	public SampleFrame getSampleFrame(){
-		if(pos==samples.length) return null;
-		int[] sample=samples[pos++];
-		if(pos==samples.length && loop) pos=0;
-		SampleFrame ans=new SampleFrame();
-		ans.left=sample[0];
-		ans.right=sample[1];
-		return ans;
+	//decodes a whole data chunk which was read before the format was known
+	private short[] decodeAll(byte[] chunk){
+		int frameSize=(stereo? 2:1)*(hidef? 2:1);
+		frames=chunk.length/frameSize;
+		samples=new short[frames*(stereo? 2:1)];
+		decode(ByteBuffer.wrap(chunk,0,frames*frameSize).order(ByteOrder.LITTLE_ENDIAN),0);
+		return samples;
+	}
+	
+	private static int chunkId(String id){
+		return id.charAt(0)|id.charAt(1)<<8|id.charAt(2)<<16|id.charAt(3)<<24;
+	}
+	
+	//reads len bytes from channel, starting at position, into the beginning of buffer
+	private static void readFully(FileChannel channel,ByteBuffer buffer,long position,int len) throws IOException{
+		buffer.clear().limit(len);
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer,position+buffer.position())<0) throw new EOFException();
+		}
+	}
+	
+	//reads len bytes from in into the beginning of buffer
+	private static void readFully(InputStream in,byte[] buffer,int len) throws IOException{
+		for(int done=0;done<len;){
+			int read=in.read(buffer,done,len-done);
+			if(read<0) throw new EOFException();
+			done+=read;
+		}
+	}
+	
+	//skips len bytes of in, which for a file means seeking rather than reading them
+	private static void skipFully(InputStream in,long len) throws IOException{
+		while(len>0){
+			long skipped=in.skip(len);
+			if(skipped<=0){
+				if(in.read()<0) throw new EOFException();
+				skipped=1;
+			}
+			len-=skipped;
+		}
+	}
+	
+	public int render(int[] buffer,int offset,int frames){
+		for(int i=0;i<frames;i++){
+			if(pos==this.frames){
+				if(!loop || pos==0) return i;
+				pos=0;
+			}
+			int left,right;
+			if(data==null){
+				int index=pos*(stereo? 2:1);
+				left=samples[index];
+				right=stereo? samples[index+1]:left;
+			}else if(hidef){
+				int index=pos*(stereo? 4:2);
+				left=data.getShort(index);
+				right=stereo? data.getShort(index+2):left;
+			}else{
+				int index=pos*(stereo? 2:1);
+				left=((data.get(index)&255)-128)*256;
+				right=stereo? ((data.get(index+1)&255)-128)*256:left;
+			}
+			pos++;
+			buffer[offset++]=left;
+			buffer[offset++]=right;
+		}
+		return frames;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+
+//a Sound which mixes any number of other Sounds together, so that they can all be played through one line and one thread
+//sources may be added and removed at any time, from any thread, without locking
+//each source has its own gain and pan, and changes to either are ramped over a chunk so that they don't click
+//all sources must have the same sample rate as the mixer, and must not be played by themselves while they are in it
+//only the mixer's volume and monitor are used; setVolume and the monitors of the sources themselves have no effect
+//the mixer never ends by itself, and once a source ends, it is removed
+class SoundMixer extends Sound{
+	private final AtomicReference<Source[]> sources=new AtomicReference<Source[]>(new Source[0]);
+	private int[] scratch=new int[0];
+	
+	public SoundMixer(float sampleRate,Monitor monitor){
+		super(monitor);
+		setSampleRate(sampleRate);
+	}
+	
+	//a sound being mixed, and its gain and pan
+	//gain is 1 by default, and pan goes from -1 (left only) through 0 (both sides at full gain) to 1 (right only)
+	public static class Source{
+		public final Sound sound;
+		private volatile double gain,pan;
+		private volatile boolean removed;
+		
+		//the gains last applied to each side, which are only used by the thread rendering the mixer
+		private double lgain,rgain;
+		
+		private Source(Sound sound,double gain,double pan){
+			this.sound=sound;
+			this.gain=gain;
+			this.pan=pan;
+			lgain=leftGain();
+			rgain=rightGain();
+		}
+		
+		public double getGain(){return gain;}
+		public void setGain(double gain){this.gain=gain;}
+		public double getPan(){return pan;}
+		public void setPan(double pan){this.pan=Math.max(-1,Math.min(pan,1));}
+		
+		private double leftGain(){return gain*Math.min(1,1-pan);}
+		private double rightGain(){return gain*Math.min(1,1+pan);}
+	}
+	
+	public Source add(Sound sound){return add(sound,1,0);}
+	
+	//starts mixing in sound from its current position, and returns the Source used to adjust or remove it
+	public Source add(Sound sound,double gain,double pan){
+		if(sound==this) throw new IllegalArgumentException("A mixer can't be added to itself");
+		if(sound.getSampleRate()!=getSampleRate()) throw new IllegalArgumentException("Sample rate "+sound.getSampleRate()+" does not match mixer sample rate "+getSampleRate());
+		if(sound.isPlaying()) throw new IllegalStateException("Sound is already playing by itself");
+		Source source=new Source(sound,gain,Math.max(-1,Math.min(pan,1)));
+		for(;;){
+			Source[] old=sources.get();
+			for(Source s:old) if(s.sound==sound) throw new IllegalArgumentException("Sound is already in this mixer");
+			Source[] now=Arrays.copyOf(old,old.length+1);
+			now[old.length]=source;
+			if(sources.compareAndSet(old,now)) return source;
+		}
+	}
+	
+	//stops mixing in source, and returns false if it wasn't in the mixer
+	//while the mixer is playing, the source is faded out over the next chunk before it is removed
+	public boolean remove(Source source){
+		if(!Arrays.asList(sources.get()).contains(source)) return false;
+		source.removed=true;
+		if(!isPlaying()) drop(source);
+		return true;
+	}
+	
+	public int getSourceCount(){return sources.get().length;}
+	
+	private void drop(Source source){
+		for(;;){
+			Source[] old=sources.get();
+			int index=Arrays.asList(old).indexOf(source);
+			if(index<0) return;
+			Source[] now=new Source[old.length-1];
+			System.arraycopy(old,0,now,0,index);
+			System.arraycopy(old,index+1,now,index,now.length-index);
+			if(sources.compareAndSet(old,now)) return;
+		}
+	}
+	
+	@Override
+	public int render(int[] buffer,int offset,int frames){
+		Arrays.fill(buffer,offset,offset+2*frames,0);
+		if(scratch.length<2*frames) scratch=new int[2*frames];
+		
+		//sources added or removed during the chunk are picked up by the next one
+		for(Source source:sources.get()){
+			boolean removed=source.removed;
+			double l=removed? 0:source.leftGain(),r=removed? 0:source.rightGain();
+			int rendered=source.sound.render(scratch,0,frames);
+			
+			//ramp from the gains applied at the end of the last chunk to the new ones
+			double lg=source.lgain,rg=source.rgain;
+			double dl=(l-lg)/frames,dr=(r-rg)/frames;
+			for(int i=0;i<rendered*2;i+=2){
+				lg+=dl;
+				rg+=dr;
+				buffer[offset+i]+=(int)(scratch[i]*lg);
+				buffer[offset+i+1]+=(int)(scratch[i+1]*rg);
+			}
+			source.lgain=l;
+			source.rgain=r;
+			if(removed || rendered<frames) drop(source);
+		}
+		return frames;
+	}
+}
\ No newline at end of file
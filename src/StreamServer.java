@@ -0,0 +1,207 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Semaphore;
+
+
+
+//serves org files as endless wav streams over HTTP, without using a sound card
+//usage: java StreamServer <directory> [port] [sample rate] [sample file] [cache megabytes] [max connections]
+//a request for /some/song.org streams the song in the directory at some/song.org, looping forever,
+//as a 16 bit stereo wav file whose length is marked as unknown
+//each connection is served by its own thread with its own Organya, and all of them share one SampleBank and one LoopCache,
+//so a song which many listeners are playing is only synthesized once, and is then copied from the cache
+//the stream is only rendered as fast as the listener reads it, since writing to the socket blocks when the listener falls behind
+//a connection which arrives while max connections are already being served is answered with 503 and closed,
+//since each one holds a thread for as long as the listener stays connected, even if it has stopped reading
+//the defaults are port 8000, a sample rate of 30000, a sample file of orgsamp.dat, a 256 MB cache and 1000 connections
+public class StreamServer{
+	private final Path root;
+	private final SampleBank bank;
+	private final float sampleRate;
+	private final LoopCache cache;
+	
+	//a permit for each connection which may be served at once
+	private final Semaphore connections;
+	
+	//the stack size of each connection's thread, which only ever has a few calls on it,
+	//so that hundreds of connections don't need hundreds of full size stacks
+	private static final long stackSize=256*1024;
+	
+	//the number of sample frames rendered and written at once
+	private static final int blockLen=4096;
+	
+	//how long to wait for a request once a connection is made, in milliseconds
+	private static final int requestTimeout=10000;
+	
+	//the most bytes read for the request line and headers together, so that a request which never ends can't use up the heap
+	//requests for org files are short, so this is far more than any real request needs
+	private static final int maxRequest=16384;
+	
+	public static void main(String[] args) throws IOException{
+		if(args.length<1){
+			System.err.println("usage: java StreamServer <directory> [port] [sample rate] [sample file] [cache megabytes] [max connections]");
+			System.exit(1);
+		}
+		int port=args.length>1? Integer.parseInt(args[1]):8000;
+		float sampleRate=args.length>2? Float.parseFloat(args[2]):30000;
+		SampleBank bank=SampleBank.get(new File(args.length>3? args[3]:"orgsamp.dat"));
+		long cacheSize=(args.length>4? Long.parseLong(args[4]):256)<<20;
+		int maxConnections=args.length>5? Integer.parseInt(args[5]):1000;
+		
+		StreamServer server=new StreamServer(new File(args[0]),bank,sampleRate,cacheSize>0? new LoopCache(cacheSize):null,maxConnections);
+		ServerSocket socket=new ServerSocket(port,1024);
+		System.out.println("serving "+server.root+" on port "+socket.getLocalPort());
+		server.serve(socket);
+	}
+	
+	//cache may be null, in which case every stream is synthesized by its own Organya
+	public StreamServer(File root,SampleBank bank,float sampleRate,LoopCache cache,int maxConnections) throws IOException{
+		if(maxConnections<=0) throw new IllegalArgumentException("Invalid number of connections: "+maxConnections);
+		this.root=root.getCanonicalFile().toPath();
+		this.bank=bank;
+		this.sampleRate=sampleRate;
+		this.cache=cache;
+		connections=new Semaphore(maxConnections);
+	}
+	
+	//accepts connections on socket until it is closed, starting a thread for each one, unless there are too many already
+	public void serve(ServerSocket socket) throws IOException{
+		while(!socket.isClosed()){
+			final Socket connection;
+			try{connection=socket.accept();}
+			catch(SocketException e){
+				//the socket has been closed
+				return;
+			}
+			if(!connections.tryAcquire()){
+				refuse(connection);
+				continue;
+			}
+			Thread t=new Thread(null,new Runnable(){
+				public void run(){
+					try{handle(connection);}
+					finally{connections.release();}
+				}
+			},"Stream "+connection.getRemoteSocketAddress(),stackSize);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	//answers a connection which can't be served now without reading its request, which fits in the socket's buffer, so this never blocks
+	private static void refuse(Socket connection){
+		try{
+			try{respond(connection.getOutputStream(),"503 Service Unavailable","Retry-After: 10\r\n");}
+			finally{connection.close();}
+		}catch(IOException e){
+			//the listener has gone already
+		}
+	}
+	
+	//reads a request from connection and answers it, streaming until the listener disconnects
+	private void handle(Socket connection){
+		try{
+			try{
+				connection.setSoTimeout(requestTimeout);
+				connection.setTcpNoDelay(true);
+				InputStream in=new BufferedInputStream(connection.getInputStream());
+				OutputStream out=connection.getOutputStream();
+				
+				//the request line, followed by headers, none of which matter here, up to a blank line
+				int[] left={maxRequest};
+				String request=readLine(in,left);
+				for(String line=request;line!=null && !line.isEmpty();) line=readLine(in,left);
+				if(left[0]<0){
+					respond(out,"431 Request Header Fields Too Large",null);
+					return;
+				}
+				String[] parts=request==null? new String[0]:request.split(" ");
+				if(parts.length!=3 || !parts[2].startsWith("HTTP/")){
+					respond(out,"400 Bad Request",null);
+					return;
+				}
+				boolean head=parts[0].equals("HEAD");
+				if(!head && !parts[0].equals("GET")){
+					respond(out,"405 Method Not Allowed","Allow: GET, HEAD\r\n");
+					return;
+				}
+				
+				Path file=resolve(parts[1]);
+				if(file==null){
+					respond(out,"404 Not Found",null);
+					return;
+				}
+				Organya org;
+				InputStream orgStream=Files.newInputStream(file);
+				try{org=new Organya(orgStream,bank,sampleRate,null);}
+				catch(IOException e){
+					respond(out,"500 Internal Server Error",null);
+					System.err.println(file+": "+e);
+					return;
+				}finally{orgStream.close();}
+				org.setCache(cache);
+				
+				respond(out,"200 OK","Content-Type: audio/wav\r\nCache-Control: no-cache\r\n");
+				if(!head) stream(org,out);
+			}finally{connection.close();}
+		}catch(IOException e){
+			//the listener disconnected, or never sent a request, which is the normal way for a stream to end
+		}
+	}
+	
+	//reads a line of the request, ending in a line feed, and returns it without its line ending,
+	//or returns null if the listener closes the connection before sending a whole line
+	//left[0] is the number of bytes which may still be read, and once they run out, it is set to -1 and null is returned
+	private static String readLine(InputStream in,int[] left) throws IOException{
+		StringBuilder line=new StringBuilder();
+		for(;;){
+			if(left[0]<=0){
+				left[0]=-1;
+				return null;
+			}
+			int c=in.read();
+			if(c<0) return null;
+			left[0]--;
+			if(c=='\n') break;
+			line.append((char)c);
+		}
+		int len=line.length();
+		if(len>0 && line.charAt(len-1)=='\r') line.setLength(len-1);
+		return line.toString();
+	}
+	
+	//the org file which path refers to, or null if there isn't one, or if it is outside the directory being served
+	private Path resolve(String path){
+		try{
+			String decoded=new URI(path).getPath();
+			if(decoded==null || !decoded.endsWith(".org")) return null;
+			Path file=root.resolve(decoded.replaceFirst("^/+","")).normalize();
+			if(!file.startsWith(root) || !Files.isRegularFile(file)) return null;
+			return file;
+		}catch(URISyntaxException e){
+			return null;
+		}catch(InvalidPathException e){
+			return null;
+		}
+	}
+	
+	//writes a response header with no length, so that the body lasts until the connection is closed
+	private static void respond(OutputStream out,String status,String headers) throws IOException{
+		String response="HTTP/1.0 "+status+"\r\n"+(headers!=null? headers:"")+"Connection: close\r\n\r\n";
+		out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+	}
+	
+	//writes org to out as a wav stream, forever, or until writing fails because the listener has gone
+	private static void stream(Organya org,OutputStream out) throws IOException{
+		WavWriter wav=new WavWriter(out,org.getSampleRate(),-1);
+		int[] block=new int[2*blockLen];
+		for(;;){
+			int rendered=org.render(block,0,blockLen);
+			wav.write(block,0,rendered);
+			if(rendered<blockLen) return;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,27 @@
+import java.util.concurrent.*;
+
+
+
+//the background threads used by the player, which are all named, so that they can be told apart in a thread dump
+final class Threads{
+	private Threads(){}
+	
+	//makes threads with the given name and priority, which are daemon threads if daemon is true
+	static ThreadFactory factory(final String name,final boolean daemon,final int priority){
+		return new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t=new Thread(r,name);
+				t.setDaemon(daemon);
+				t.setPriority(priority);
+				return t;
+			}
+		};
+	}
+	
+	//a single daemon thread with the given name, which runs the tasks it is given in order
+	static ExecutorService daemonExecutor(String name){return daemonExecutor(name,Thread.NORM_PRIORITY);}
+	
+	static ExecutorService daemonExecutor(String name,int priority){
+		return Executors.newSingleThreadExecutor(factory(name,true,priority));
+	}
+}